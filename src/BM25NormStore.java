@@ -0,0 +1,71 @@
+/**
+ * BM25NormStore keeps the BM25 length normalization of every document, k_1 * ((1 - b) + b * docLen
+ * / avglen), in a float array indexed by internal docid. One array is built for each combination of
+ * field, b and k_1 the first time it is needed, and is then shared by all queries and threads.
+ * 
+ * @author KyleMao
+ *
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class BM25NormStore {
+
+  private DocLengthStore dls;
+  private Map<String, float[]> norms = new ConcurrentHashMap<String, float[]>();
+
+  /**
+   * Constructor.
+   * 
+   * @param dls The document lengths the normalizations are computed from.
+   */
+  public BM25NormStore(DocLengthStore dls) {
+    this.dls = dls;
+  }
+
+  /**
+   * Returns the length normalization of all documents for a field, indexed by internal docid. The
+   * array is shared and must not be modified.
+   * 
+   * @param field The field the documents are scored in.
+   * @param b The BM25 b parameter.
+   * @param k_1 The BM25 k_1 parameter.
+   * @return The length normalizations.
+   * @throws IOException
+   */
+  public float[] getNorms(String field, double b, double k_1) throws IOException {
+    String key = field + ':' + b + ':' + k_1;
+    float[] fieldNorms = norms.get(key);
+    if (fieldNorms == null) {
+      fieldNorms = loadNorms(key, field, b, k_1);
+    }
+    return fieldNorms;
+  }
+
+  /*
+   * Compute the normalizations for one combination of field, b and k_1.
+   */
+  private synchronized float[] loadNorms(String key, String field, double b, double k_1)
+      throws IOException {
+
+    float[] fieldNorms = norms.get(key);
+    if (fieldNorms != null) {
+      return fieldNorms;
+    }
+
+    double avglen =
+        (double) QryEval.READER.getSumTotalTermFreq(field)
+            / (double) QryEval.READER.getDocCount(field);
+    int[] docLengths = dls.getDocLengths(field);
+    fieldNorms = new float[docLengths.length];
+    for (int i = 0; i < docLengths.length; i++) {
+      fieldNorms[i] = (float) (k_1 * ((1 - b) + b * docLengths[i] / avglen));
+    }
+
+    norms.put(key, fieldNorms);
+    return fieldNorms;
+  }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * BigramIndex reads the precomputed #NEAR/n inverted lists written by BigramIndexBuilder. The
+ * dictionary is loaded into a map, and the lists are memory-mapped and decoded into an InvList when
+ * a query operator asks for one.
+ *
+ * A BigramIndex only reads from its mapped file, so it can be shared by several threads.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+public class BigramIndex {
+
+  private Map<String, Long> dictionary = new HashMap<String, Long>();
+  private MappedByteBuffer postings;
+
+  /**
+   * Open a bigram index.
+   *
+   * @param dir The directory that holds the index files.
+   * @throws IOException
+   */
+  public BigramIndex(File dir) throws IOException {
+
+    DataInputStream meta = new DataInputStream(new FileInputStream(new File(dir, "bigram.meta")));
+    if (meta.readInt() != BigramIndexBuilder.MAGIC) {
+      meta.close();
+      throw new IOException("Not a bigram index: " + dir);
+    }
+    int maxDoc = meta.readInt();
+    int numDocs = meta.readInt();
+    meta.close();
+
+    // The lists hold docids and skip deleted documents, so they must come from the open index.
+    if (maxDoc != QryEval.READER.maxDoc() || numDocs != QryEval.READER.numDocs()) {
+      throw new IOException("Bigram index " + dir + " was built for a different index");
+    }
+
+    DataInputStream dict =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir,
+            "bigram.dict"))));
+    try {
+      while (true) {
+        String key = dict.readUTF();
+        dictionary.put(key, dict.readLong());
+      }
+    } catch (EOFException e) {
+      // End of the dictionary.
+    } finally {
+      dict.close();
+    }
+
+    RandomAccessFile post = new RandomAccessFile(new File(dir, "bigram.post"), "r");
+    try {
+      if (post.length() > Integer.MAX_VALUE) {
+        throw new IOException("Bigram index postings larger than 2GB are not supported: " + dir);
+      }
+      this.postings = post.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, post.length());
+    } finally {
+      post.close();
+    }
+  }
+
+  /**
+   * Get the precomputed inverted list of #NEAR/distance(term1 term2).
+   *
+   * @param field The field of the terms.
+   * @param term1 The first term.
+   * @param term2 The second term.
+   * @param distance The #NEAR distance.
+   * @return The inverted list, or null if it was not precomputed.
+   */
+  public InvList getInvList(String field, String term1, String term2, int distance) {
+
+    Long offset = dictionary.get(BigramIndexBuilder.key(field, term1, term2, distance));
+    if (offset == null) {
+      return null;
+    }
+
+    InvList invList = new InvList(field);
+    int position = (int) (long) offset;
+    int df = postings.getInt(position);
+    invList.ctf = postings.getInt(position + 4);
+    position += 8;
+    for (int i = 0; i < df; i++) {
+      int docid = postings.getInt(position);
+      int[] locations = new int[postings.getInt(position + 4)];
+      position += 8;
+      for (int j = 0; j < locations.length; j++) {
+        locations[j] = postings.getInt(position);
+        position += 4;
+      }
+      invList.postings.add(invList.new DocPosting(docid, locations));
+    }
+    invList.df = df;
+    RunReport.countPostings(df);
+    return invList;
+  }
+
+}
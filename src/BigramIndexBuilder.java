@@ -0,0 +1,225 @@
+/**
+ * BigramIndexBuilder materializes the inverted lists of frequent #NEAR/n term pairs into a sidecar
+ * index that BigramIndex reads. The pairs are mined either from the term vectors of a field (pairs
+ * of terms that occur n or fewer positions apart, counted once per occurrence) or from a query file
+ * (the two-term #NEAR/n operators of the queries, counted once per operator). The most frequent
+ * pairs are evaluated with QryopIlNear, so their lists are exactly what the operator would produce.
+ * The pairs are counted with PairCounts, which spills its counts to disk, so mining a large index
+ * takes bounded memory.
+ *
+ * The index is written to three files in the output directory: bigram.meta (sizes), bigram.dict
+ * (pair key and offset) and bigram.post (for each list, df and ctf, then docid, tf and positions of
+ * each posting).
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+public class BigramIndexBuilder {
+
+  public static final int MAGIC = 0x42494731;
+
+  private static String usage = "Usage:  java " + BigramIndexBuilder.class.getName()
+      + " indexPath outputDir distance maxPairs (-field field | -queries queryFile)\n\n";
+
+  /**
+   * @param args The index path, the output directory, the #NEAR distance, the number of pairs to
+   *        materialize, and the source of the pairs.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 6 || !(args[4].equals("-field") || args[4].equals("-queries"))) {
+      QryEval.fatalError(usage);
+    }
+
+    long startTime = System.currentTimeMillis();
+
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+    File outputDir = new File(args[1]);
+    int distance = Integer.parseInt(args[2]);
+    int maxPairs = Integer.parseInt(args[3]);
+    if (!outputDir.exists() && !outputDir.mkdirs()) {
+      QryEval.fatalError("Error: Cannot create " + outputDir);
+    }
+
+    PairCounts pairCounts;
+    if (args[4].equals("-field")) {
+      pairCounts = minePairsFromIndex(args[5], distance);
+    } else {
+      pairCounts = minePairsFromQueries(new File(args[5]), distance);
+    }
+
+    int numLists = build(pairCounts.select(maxPairs), distance, outputDir);
+
+    long endTime = System.currentTimeMillis();
+    System.out.println("Lists: " + numLists);
+    System.out.println("Running Time: " + (endTime - startTime) + " ms");
+  }
+
+  /**
+   * Get the key of a pair, as used in the dictionary.
+   *
+   * @param field The field of the terms.
+   * @param term1 The first term.
+   * @param term2 The second term.
+   * @param distance The #NEAR distance.
+   * @return The key.
+   */
+  public static String key(String field, String term1, String term2, int distance) {
+    return field + '\t' + term1 + '\t' + term2 + '\t' + distance;
+  }
+
+  /**
+   * Materialize the inverted lists of term pairs.
+   *
+   * @param pairs The keys of the pairs.
+   * @param distance The #NEAR distance.
+   * @param outputDir The directory to write the index files to.
+   * @return The number of lists written.
+   * @throws IOException
+   */
+  public static int build(List<String> pairs, int distance, File outputDir) throws IOException {
+
+    DataOutputStream dict =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(outputDir,
+            "bigram.dict"))));
+    DataOutputStream post =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(outputDir,
+            "bigram.post"))));
+
+    long offset = 0;
+    int numLists = 0;
+    RetrievalModel model = new RetrievalModelUnrankedBoolean();
+    for (String pair : pairs) {
+      String[] parts = pair.split("\t");
+      QryopIlNear near =
+          new QryopIlNear(distance, new QryopIlTerm(parts[1], parts[0]), new QryopIlTerm(parts[2],
+              parts[0]));
+      InvList invList = near.evaluate(model).invertedList;
+      if (invList.df == 0) {
+        continue;
+      }
+
+      dict.writeUTF(pair);
+      dict.writeLong(offset);
+      post.writeInt(invList.df);
+      post.writeInt(invList.ctf);
+      offset += 8;
+      for (int i = 0; i < invList.df; i++) {
+        InvList.DocPosting posting = invList.postings.get(i);
+        post.writeInt(posting.docid);
+        post.writeInt(posting.tf);
+        for (int j = 0; j < posting.tf; j++) {
+          post.writeInt(posting.positions[j]);
+        }
+        offset += 8 + 4L * posting.tf;
+      }
+      numLists++;
+    }
+    dict.close();
+    post.close();
+
+    DataOutputStream meta =
+        new DataOutputStream(new FileOutputStream(new File(outputDir, "bigram.meta")));
+    meta.writeInt(MAGIC);
+    meta.writeInt(QryEval.READER.maxDoc());
+    meta.writeInt(QryEval.READER.numDocs());
+    meta.writeInt(numLists);
+    meta.close();
+
+    return numLists;
+  }
+
+  /*
+   * Count the pairs of terms of a field that occur in order within distance positions of each
+   * other, using the term vectors of all live documents. The stems of a document are numbered once,
+   * so counting an occurrence does not create any objects.
+   */
+  private static PairCounts minePairsFromIndex(String field, int distance) throws IOException {
+
+    PairCounts pairCounts = new PairCounts(distance);
+    Bits liveDocs = MultiFields.getLiveDocs(QryEval.READER);
+    for (int docid = 0; docid < QryEval.READER.maxDoc(); docid++) {
+      if ((liveDocs != null && !liveDocs.get(docid))
+          || QryEval.READER.getTermVector(docid, field) == null) {
+        continue;
+      }
+      TermVector termVector = new TermVector(docid, field, TermVector.Mode.POSITIONS);
+      int[] termIds = new int[termVector.stemsLength()];
+      for (int stem = 1; stem < termIds.length; stem++) {
+        termIds[stem] = pairCounts.termId(field, termVector.stemString(stem));
+      }
+      for (int i = 0; i < termVector.positionsLength(); i++) {
+        int stem1 = termVector.stemAt(i);
+        if (stem1 <= 0) {
+          continue;
+        }
+        for (int j = i + 1; j <= i + distance && j < termVector.positionsLength(); j++) {
+          int stem2 = termVector.stemAt(j);
+          if (stem2 > 0) {
+            pairCounts.count(termIds[stem1], termIds[stem2]);
+          }
+        }
+      }
+    }
+    return pairCounts;
+  }
+
+  /*
+   * Count the two-term #NEAR/distance operators in a query file.
+   */
+  private static PairCounts minePairsFromQueries(File queryFile, int distance)
+      throws IOException {
+
+    PairCounts pairCounts = new PairCounts(distance);
+    BufferedReader in = new BufferedReader(new FileReader(queryFile));
+    String qLine;
+    while ((qLine = in.readLine()) != null) {
+      String query = qLine.substring(qLine.indexOf(':') + 1);
+      try {
+        // Any default operator will do, since only the #NEAR operators are counted.
+        Qryop qTree = QryEval.parseQuery(query, new RetrievalModelUnrankedBoolean());
+        minePairsFromQuery(qTree, distance, pairCounts);
+      } catch (QrySyntaxException e) {
+        System.err.println("Warning: Skipping query: " + e.getMessage());
+      }
+    }
+    in.close();
+    return pairCounts;
+  }
+
+  private static void minePairsFromQuery(Qryop q, int distance, PairCounts pairCounts)
+      throws IOException {
+
+    if (q instanceof QryopIlNear && ((QryopIlNear) q).getDistance() == distance
+        && q.args.size() == 2 && q.args.get(0) instanceof QryopIlTerm
+        && q.args.get(1) instanceof QryopIlTerm) {
+      QryopIlTerm term1 = (QryopIlTerm) q.args.get(0);
+      QryopIlTerm term2 = (QryopIlTerm) q.args.get(1);
+      if (term1.getField().equals(term2.getField())) {
+        pairCounts.count(pairCounts.termId(term1.getField(), term1.getTerm()),
+            pairCounts.termId(term2.getField(), term2.getTerm()));
+      }
+      return;
+    }
+    for (Qryop arg : q.args) {
+      minePairsFromQuery(arg, distance, pairCounts);
+    }
+  }
+
+}
@@ -0,0 +1,291 @@
+/**
+ * DocBitmap is a compressed set of docids in the style of a roaring bitmap. Docids are split by
+ * their high 16 bits into chunks of 65536, and each chunk that is not empty has a container for the
+ * low 16 bits: a sorted array while the chunk holds at most 4096 docids, and a bitmap of 1024 words
+ * otherwise. Intersections and unions work chunk by chunk, word-parallel on bitmap containers, so
+ * sparse and dense sets both stay small and fast.
+ *
+ * A DocBitmap is filled in increasing docid order with add, and is not modified by and and or.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.util.Arrays;
+
+public class DocBitmap {
+
+  // The largest number of docids an array container holds. At that size both forms take 8 KB.
+  private static final int ARRAY_MAX = 4096;
+  private static final int WORDS = 1024;
+
+  // The low 16 bits of the docids of one chunk, in one of two forms.
+  private static class Container {
+    private char[] array;
+    private long[] bits;
+    private int cardinality;
+
+    private boolean contains(char low) {
+      if (bits != null) {
+        return (bits[low >>> 6] & (1L << low)) != 0;
+      }
+      return Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+    }
+
+    /*
+     * Convert a container to the form that suits its cardinality.
+     */
+    private Container normalize() {
+      if (bits != null && cardinality <= ARRAY_MAX) {
+        char[] lows = new char[cardinality];
+        int n = 0;
+        for (int w = 0; w < WORDS; w++) {
+          long word = bits[w];
+          while (word != 0) {
+            lows[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+            word &= word - 1;
+          }
+        }
+        array = lows;
+        bits = null;
+      } else if (array != null && cardinality > ARRAY_MAX) {
+        bits = new long[WORDS];
+        for (int i = 0; i < cardinality; i++) {
+          bits[array[i] >>> 6] |= 1L << array[i];
+        }
+        array = null;
+      }
+      return this;
+    }
+  }
+
+  private int[] keys = new int[4];
+  private Container[] containers = new Container[4];
+  private int size = 0;
+
+  /**
+   * Add a docid. Docids must be added in increasing order.
+   *
+   * @param docid The internal document id.
+   */
+  public void add(int docid) {
+
+    int key = docid >>> 16;
+    char low = (char) docid;
+    if (size == 0 || keys[size - 1] != key) {
+      Container container = new Container();
+      container.array = new char[4];
+      append(key, container);
+    }
+
+    Container container = containers[size - 1];
+    if (container.bits != null) {
+      container.bits[low >>> 6] |= 1L << low;
+      container.cardinality++;
+      return;
+    }
+    if (container.cardinality == container.array.length) {
+      container.array = Arrays.copyOf(container.array, container.cardinality * 2);
+    }
+    container.array[container.cardinality++] = low;
+    if (container.cardinality > ARRAY_MAX) {
+      container.normalize();
+    }
+  }
+
+  /**
+   * @return The number of docids in the set.
+   */
+  public int cardinality() {
+    int cardinality = 0;
+    for (int i = 0; i < size; i++) {
+      cardinality += containers[i].cardinality;
+    }
+    return cardinality;
+  }
+
+  /**
+   * @return The docids in increasing order.
+   */
+  public int[] toArray() {
+    int[] docids = new int[cardinality()];
+    int n = 0;
+    for (int i = 0; i < size; i++) {
+      int high = keys[i] << 16;
+      Container container = containers[i];
+      if (container.bits != null) {
+        for (int w = 0; w < WORDS; w++) {
+          long word = container.bits[w];
+          while (word != 0) {
+            docids[n++] = high | ((w << 6) + Long.numberOfTrailingZeros(word));
+            word &= word - 1;
+          }
+        }
+      } else {
+        for (int j = 0; j < container.cardinality; j++) {
+          docids[n++] = high | container.array[j];
+        }
+      }
+    }
+    return docids;
+  }
+
+  /**
+   * The intersection of two sets.
+   *
+   * @param a A set.
+   * @param b A set.
+   * @return The docids that are in both sets.
+   */
+  public static DocBitmap and(DocBitmap a, DocBitmap b) {
+
+    DocBitmap result = new DocBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < a.size && j < b.size) {
+      if (a.keys[i] < b.keys[j]) {
+        i++;
+      } else if (a.keys[i] > b.keys[j]) {
+        j++;
+      } else {
+        Container container = and(a.containers[i], b.containers[j]);
+        if (container.cardinality > 0) {
+          result.append(a.keys[i], container);
+        }
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The union of two sets.
+   *
+   * @param a A set.
+   * @param b A set.
+   * @return The docids that are in either set.
+   */
+  public static DocBitmap or(DocBitmap a, DocBitmap b) {
+
+    DocBitmap result = new DocBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < a.size || j < b.size) {
+      if (j >= b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+        result.append(a.keys[i], a.containers[i]);
+        i++;
+      } else if (i >= a.size || a.keys[i] > b.keys[j]) {
+        result.append(b.keys[j], b.containers[j]);
+        j++;
+      } else {
+        result.append(a.keys[i], or(a.containers[i], b.containers[j]));
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /*
+   * Append a container for a chunk after the last one. Containers may be shared between sets,
+   * since a set is not modified once it is combined.
+   */
+  private void append(int key, Container container) {
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      containers = Arrays.copyOf(containers, size * 2);
+    }
+    keys[size] = key;
+    containers[size] = container;
+    size++;
+  }
+
+  private static Container and(Container a, Container b) {
+
+    Container result = new Container();
+    if (a.bits != null && b.bits != null) {
+      result.bits = new long[WORDS];
+      for (int w = 0; w < WORDS; w++) {
+        result.bits[w] = a.bits[w] & b.bits[w];
+        result.cardinality += Long.bitCount(result.bits[w]);
+      }
+      return result.normalize();
+    }
+
+    if (a.bits != null) {
+      Container tmp = a;
+      a = b;
+      b = tmp;
+    }
+    // Now a is an array. Keep the elements that are in b.
+    result.array = new char[a.cardinality];
+    if (b.bits != null) {
+      for (int i = 0; i < a.cardinality; i++) {
+        if (b.contains(a.array[i])) {
+          result.array[result.cardinality++] = a.array[i];
+        }
+      }
+    } else {
+      int i = 0;
+      int j = 0;
+      while (i < a.cardinality && j < b.cardinality) {
+        if (a.array[i] < b.array[j]) {
+          i++;
+        } else if (a.array[i] > b.array[j]) {
+          j++;
+        } else {
+          result.array[result.cardinality++] = a.array[i];
+          i++;
+          j++;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static Container or(Container a, Container b) {
+
+    Container result = new Container();
+    if (a.bits != null || b.bits != null) {
+      if (a.bits == null) {
+        Container tmp = a;
+        a = b;
+        b = tmp;
+      }
+      // Now a is a bitmap.
+      result.bits = a.bits.clone();
+      if (b.bits != null) {
+        for (int w = 0; w < WORDS; w++) {
+          result.bits[w] |= b.bits[w];
+        }
+      } else {
+        for (int i = 0; i < b.cardinality; i++) {
+          result.bits[b.array[i] >>> 6] |= 1L << b.array[i];
+        }
+      }
+      for (int w = 0; w < WORDS; w++) {
+        result.cardinality += Long.bitCount(result.bits[w]);
+      }
+      return result;
+    }
+
+    result.array = new char[a.cardinality + b.cardinality];
+    int i = 0;
+    int j = 0;
+    while (i < a.cardinality || j < b.cardinality) {
+      char next;
+      if (j >= b.cardinality || (i < a.cardinality && a.array[i] < b.array[j])) {
+        next = a.array[i++];
+      } else if (i >= a.cardinality || a.array[i] > b.array[j]) {
+        next = b.array[j++];
+      } else {
+        next = a.array[i++];
+        j++;
+      }
+      result.array[result.cardinality++] = next;
+    }
+    return result.normalize();
+  }
+
+}
@@ -3,29 +3,28 @@
  */
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
-import org.apache.lucene.index.MultiDocValues;
-import org.apache.lucene.index.MultiFields;
 
 /**
- * DocLengthStore is used to access the document lengths of indexed docs.
+ * DocLengthStore is used to access the document lengths of indexed docs. The lengths of a field are
+ * read from the index the first time the field is used, and are kept in an array indexed by
+ * internal docid.
  */
 public class DocLengthStore {
 
   private IndexReader reader;
-  private Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private Map<String, int[]> lengths = new ConcurrentHashMap<String, int[]>();
 
   /**
    * @param reader IndexReader object created in {@link QryEval}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));
-    }
   }
 
   /**
@@ -35,6 +34,48 @@ public class DocLengthStore {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return getDocLengths(fieldname)[docid];
+  }
+
+  /**
+   * Returns the lengths of the specified field in all documents, indexed by internal docid. Loops
+   * that look up many lengths should fetch this array once. The array is shared and must not be
+   * modified.
+   *
+   * @param fieldname Name of field to access lengths. "body" is the default field.
+   */
+  public int[] getDocLengths(String fieldname) throws IOException {
+    int[] fieldLengths = lengths.get(fieldname);
+    if (fieldLengths == null) {
+      fieldLengths = loadDocLengths(fieldname);
+    }
+    return fieldLengths;
+  }
+
+  /*
+   * Read the lengths of a field from the norms of each index segment. Documents that have no norms
+   * for the field get a length of 0.
+   */
+  private synchronized int[] loadDocLengths(String fieldname) throws IOException {
+
+    int[] fieldLengths = lengths.get(fieldname);
+    if (fieldLengths != null) {
+      return fieldLengths;
+    }
+
+    fieldLengths = new int[reader.maxDoc()];
+    for (AtomicReaderContext context : reader.leaves()) {
+      NumericDocValues norms = context.reader().getNormValues(fieldname);
+      if (norms == null) {
+        continue;
+      }
+      int maxDoc = context.reader().maxDoc();
+      for (int i = 0; i < maxDoc; i++) {
+        fieldLengths[context.docBase + i] = (int) norms.get(i);
+      }
+    }
+
+    lengths.put(fieldname, fieldLengths);
+    return fieldLengths;
   }
 }
@@ -1,6 +1,8 @@
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -11,17 +13,26 @@ import java.util.List;
  */
 public class DocScore {
 
-  // A little utility class to create a <extdocid, score> object.
+  // A little utility class to create a <docid, extdocid, score> object. The external id is only
+  // looked up when it is needed, to break a tie or to be returned.
   private class DocScoreEntry implements Comparable<DocScoreEntry> {
+    private int docid;
     private String extId;
     private Double score;
 
-    private DocScoreEntry(String extId, double score) {
-      this.extId = extId;
+    private DocScoreEntry(int docid, double score) {
+      this.docid = docid;
       this.score = score;
     }
 
-    // compareTo method used for sorting
+    private String getExtId() throws IOException {
+      if (extId == null) {
+        extId = QryEval.getExternalDocid(docid);
+      }
+      return extId;
+    }
+
+    // compareTo method used for sorting. The external ids of tied entries must have been looked up.
     @Override
     public int compareTo(DocScoreEntry ds) {
 
@@ -44,13 +55,80 @@ public class DocScore {
    * @throws IOException
    */
   public DocScore(QryResult result) throws IOException {
+    this(result, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Get raw query results and create the sorted scores of the top k documents. The documents are
+   * selected by score first, so external ids are only looked up for documents with tied scores and
+   * for those that are asked for.
+   * 
+   * @param result Raw query results.
+   * @param k The number of documents to keep.
+   * @throws IOException
+   */
+  public DocScore(QryResult result, int k) throws IOException {
+
     ScoreList scoreList = result.docScores;
-    for (int i = 0; i < scoreList.scores.size(); i++) {
-      scores.add(new DocScoreEntry(QryEval.getExternalDocid(scoreList.getDocid(i)), scoreList
-          .getDocidScore(i)));
+    int n = scoreList.scores.size();
+    if (n == 0 || k <= 0) {
+      return;
+    }
+
+    // The lowest score that can be in the top k.
+    double threshold = Double.NEGATIVE_INFINITY;
+    if (n > k) {
+      double[] sortedScores = new double[n];
+      for (int i = 0; i < n; i++) {
+        sortedScores[i] = scoreList.getDocidScore(i);
+      }
+      Arrays.sort(sortedScores);
+      threshold = sortedScores[n - k];
+    }
+
+    for (int i = 0; i < n; i++) {
+      double score = scoreList.getDocidScore(i);
+      if (Double.compare(score, threshold) >= 0) {
+        scores.add(new DocScoreEntry(scoreList.getDocid(i), score));
+      }
+    }
+
+    // Sort by score, then look up the external ids of each run of tied scores and sort the run by
+    // them.
+    Collections.sort(scores, new Comparator<DocScoreEntry>() {
+      @Override
+      public int compare(DocScoreEntry ds1, DocScoreEntry ds2) {
+        return ds2.score.compareTo(ds1.score);
+      }
+    });
+    for (int start = 0; start < scores.size();) {
+      int end = start + 1;
+      while (end < scores.size() && scores.get(end).score.equals(scores.get(start).score)) {
+        end++;
+      }
+      if (end - start > 1) {
+        for (int i = start; i < end; i++) {
+          scores.get(i).getExtId();
+        }
+        Collections.sort(scores.subList(start, end));
+      }
+      start = end;
     }
 
-    Collections.sort(scores);
+    // Only the ties at the threshold can leave more than k documents.
+    if (scores.size() > k) {
+      scores.subList(k, scores.size()).clear();
+    }
+  }
+
+  /**
+   * Get the n'th internal document id.
+   * 
+   * @param n
+   * @return Internal ID of the corresponding document.
+   */
+  public int getInternalDocid(int n) {
+    return this.scores.get(n).docid;
   }
 
   /**
@@ -58,9 +136,10 @@ public class DocScore {
    * 
    * @param n
    * @return External ID of the corresponding document.
+   * @throws IOException
    */
-  public String getExternalDocid(int n) {
-    return this.scores.get(n).extId;
+  public String getExternalDocid(int n) throws IOException {
+    return this.scores.get(n).getExtId();
   }
 
   /**
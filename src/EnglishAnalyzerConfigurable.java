@@ -94,6 +94,13 @@ public final class EnglishAnalyzerConfigurable extends StopwordAnalyzerBase {
         CharArraySet.unmodifiableSet(CharArraySet.copy(matchVersion, stemExclusionSet));
   }
 
+  /*
+   * The Analyzer base class keeps the components created by createComponents in a per-thread
+   * cache and resets them with a new Reader for each call to tokenStream, so a tokenizer and
+   * filter chain is built once per thread. Components that were already created do not see later
+   * changes made by the setters below, so the analyzer must be configured before it is used.
+   */
+
   /**
    * Enable or disable the conversion of text to lower case.
    */
@@ -0,0 +1,219 @@
+/**
+ * This class accumulates the weights of relevance feedback expansion terms. The weight of a term t
+ * over the feedback documents d is
+ *
+ * sum_d p(I|d) * p(t|d) * log(|C| / ctf_t), with p(t|d) = (tf_td + mu * p_mle_t) / (|d| + mu).
+ *
+ * The sum splits into a part from the documents that contain t, and a default part mu * p_mle_t *
+ * sum_d p(I|d) / (|d| + mu) over all documents. The default part is applied in closed form when the
+ * weights are read, so adding a document costs only its own terms.
+ *
+ * Terms are identified by integer ids chosen by the caller, and kept in an open addressing hash
+ * table of primitive arrays.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.util.Arrays;
+
+public class FbTermWeights {
+
+  private static final int EMPTY = -1;
+
+  private double mu;
+  private double colLen;
+
+  // sum_d p(I|d) / (|d| + mu) over all documents, and the factor of the current document.
+  private double defaultMass;
+  private double docFactor;
+
+  // The hash table. For each used slot, the term id, its ctf and sum of p(I|d) * tf / (|d| + mu)
+  // over the documents that contain it.
+  private int[] termIds;
+  private long[] ctfs;
+  private double[] tfMass;
+  private int size;
+
+  /**
+   * Constructor.
+   *
+   * @param mu The Dirichlet smoothing parameter (fbMu).
+   * @param colLen The length of the collection, for the field of the terms.
+   */
+  public FbTermWeights(double mu, double colLen) {
+    this.mu = mu;
+    this.colLen = colLen;
+    allocate(1024);
+  }
+
+  private void allocate(int capacity) {
+    termIds = new int[capacity];
+    Arrays.fill(termIds, EMPTY);
+    ctfs = new long[capacity];
+    tfMass = new double[capacity];
+    size = 0;
+  }
+
+  /**
+   * Start a feedback document. The terms added next belong to this document.
+   *
+   * @param p_I_d The score of the document in the initial ranking.
+   * @param docLen The length of the document.
+   */
+  public void addDocument(double p_I_d, double docLen) {
+    docFactor = p_I_d / (docLen + mu);
+    defaultMass += docFactor;
+  }
+
+  /**
+   * Add a term of the current document. Each term may be added only once per document.
+   *
+   * @param termId The id of the term.
+   * @param tf The frequency of the term in the document.
+   * @param ctf The collection term frequency of the term.
+   */
+  public void addTerm(int termId, int tf, long ctf) {
+
+    int slot = find(termId);
+    if (termIds[slot] == EMPTY) {
+      if (2 * (size + 1) > termIds.length) {
+        rehash();
+        slot = find(termId);
+      }
+      termIds[slot] = termId;
+      ctfs[slot] = ctf;
+      size++;
+    }
+    tfMass[slot] += docFactor * tf;
+  }
+
+  /**
+   * Get the weight of a term.
+   *
+   * @param termId The id of the term.
+   * @return The weight, or 0 if the term did not occur in any feedback document.
+   */
+  public double getWeight(int termId) {
+    int slot = find(termId);
+    return (termIds[slot] == EMPTY) ? 0.0 : weight(slot);
+  }
+
+  /**
+   * Get the terms with the highest weights, using a heap of size k. Ties are broken by the lower
+   * term id.
+   *
+   * @param k The number of terms.
+   * @return Up to k term ids, by decreasing weight.
+   */
+  public int[] getTopTerms(int k) {
+
+    // A min-heap of slots, whose root is the lowest of the best terms seen so far.
+    int[] heap = new int[Math.min(k, size)];
+    double[] heapWeights = new double[heap.length];
+    int heapSize = 0;
+    for (int slot = 0; slot < termIds.length && heap.length > 0; slot++) {
+      if (termIds[slot] == EMPTY) {
+        continue;
+      }
+      double w = weight(slot);
+      if (heapSize < heap.length) {
+        heap[heapSize] = slot;
+        heapWeights[heapSize] = w;
+        siftUp(heap, heapWeights, heapSize++);
+      } else if (isLower(heap[0], heapWeights[0], slot, w)) {
+        heap[0] = slot;
+        heapWeights[0] = w;
+        siftDown(heap, heapWeights, 0, heapSize);
+      }
+    }
+
+    // Empty the heap from the lowest to the highest term.
+    int[] topTerms = new int[heapSize];
+    for (int i = heapSize - 1; i >= 0; i--) {
+      topTerms[i] = termIds[heap[0]];
+      heap[0] = heap[i];
+      heapWeights[0] = heapWeights[i];
+      siftDown(heap, heapWeights, 0, i);
+    }
+    return topTerms;
+  }
+
+  private double weight(int slot) {
+    double ctf = ctfs[slot];
+    double p_mle = ctf / colLen;
+    double idf = Math.log(colLen / ctf);
+    return idf * (tfMass[slot] + mu * p_mle * defaultMass);
+  }
+
+  /*
+   * Whether the term in slot1 ranks below the term in slot2.
+   */
+  private boolean isLower(int slot1, double w1, int slot2, double w2) {
+    return w1 < w2 || (w1 == w2 && termIds[slot1] > termIds[slot2]);
+  }
+
+  private void siftUp(int[] heap, double[] heapWeights, int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (!isLower(heap[i], heapWeights[i], heap[parent], heapWeights[parent])) {
+        break;
+      }
+      swap(heap, heapWeights, i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int[] heap, double[] heapWeights, int i, int heapSize) {
+    while (2 * i + 1 < heapSize) {
+      int child = 2 * i + 1;
+      if (child + 1 < heapSize
+          && isLower(heap[child + 1], heapWeights[child + 1], heap[child], heapWeights[child])) {
+        child++;
+      }
+      if (!isLower(heap[child], heapWeights[child], heap[i], heapWeights[i])) {
+        break;
+      }
+      swap(heap, heapWeights, i, child);
+      i = child;
+    }
+  }
+
+  private static void swap(int[] heap, double[] heapWeights, int i, int j) {
+    int slot = heap[i];
+    heap[i] = heap[j];
+    heap[j] = slot;
+    double w = heapWeights[i];
+    heapWeights[i] = heapWeights[j];
+    heapWeights[j] = w;
+  }
+
+  /*
+   * Find the slot of a term, or the empty slot where it would go.
+   */
+  private int find(int termId) {
+    int mask = termIds.length - 1;
+    int slot = (termId * 0x9e3779b9) >>> (32 - Integer.numberOfTrailingZeros(termIds.length));
+    while (termIds[slot] != EMPTY && termIds[slot] != termId) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash() {
+    int[] oldTermIds = termIds;
+    long[] oldCtfs = ctfs;
+    double[] oldTfMass = tfMass;
+    allocate(oldTermIds.length * 2);
+    for (int i = 0; i < oldTermIds.length; i++) {
+      if (oldTermIds[i] != EMPTY) {
+        int slot = find(oldTermIds[i]);
+        termIds[slot] = oldTermIds[i];
+        ctfs[slot] = oldCtfs[i];
+        tfMass[slot] = oldTfMass[i];
+        size++;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,195 @@
+/**
+ * ForwardIndex reads a forward index written by ForwardIndexBuilder. The dictionary (terms, ctf and
+ * df by term id) is loaded into arrays, and the document vectors are memory-mapped. A document
+ * vector holds the document's term ids in increasing order and the frequency of each.
+ *
+ * A ForwardIndex only reads from its mapped files, so it can be shared by several threads.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ForwardIndex {
+
+  /**
+   * The terms of one document, as parallel arrays of term ids (in increasing order) and tfs.
+   */
+  public static class DocVector {
+
+    int[] termIds;
+    int[] termFreqs;
+
+    /**
+     * @return The number of unique terms in the document.
+     */
+    public int length() {
+      return termIds.length;
+    }
+
+    /**
+     * @param i Index of the term in this document.
+     * @return The term id of the i'th term.
+     */
+    public int termId(int i) {
+      return termIds[i];
+    }
+
+    /**
+     * @param i Index of the term in this document.
+     * @return The frequency (tf) of the i'th term.
+     */
+    public int termFreq(int i) {
+      return termFreqs[i];
+    }
+  }
+
+  private String field;
+  private int maxDoc;
+  private String[] terms;
+  private long[] ctfs;
+  private int[] dfs;
+  private Map<String, Integer> termIds;
+  private LongBuffer offsets;
+  private IntBuffer postings;
+
+  /**
+   * Open a forward index.
+   *
+   * @param dir The directory that holds the index files.
+   * @throws IOException
+   */
+  public ForwardIndex(File dir) throws IOException {
+
+    DataInputStream meta = new DataInputStream(new FileInputStream(new File(dir, "forward.meta")));
+    if (meta.readInt() != ForwardIndexBuilder.MAGIC) {
+      meta.close();
+      throw new IOException("Not a forward index: " + dir);
+    }
+    this.field = meta.readUTF();
+    this.maxDoc = meta.readInt();
+    int numTerms = meta.readInt();
+    meta.close();
+
+    if (maxDoc != QryEval.READER.maxDoc()) {
+      throw new IOException("Forward index " + dir + " was built for a different index");
+    }
+
+    this.terms = new String[numTerms];
+    this.ctfs = new long[numTerms];
+    this.dfs = new int[numTerms];
+    this.termIds = new HashMap<String, Integer>(numTerms * 2);
+    DataInputStream dict =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir,
+            "forward.dict"))));
+    for (int i = 0; i < numTerms; i++) {
+      terms[i] = dict.readUTF();
+      ctfs[i] = dict.readLong();
+      dfs[i] = dict.readInt();
+      termIds.put(terms[i], i);
+    }
+    dict.close();
+
+    this.offsets = map(new File(dir, "forward.offs")).asLongBuffer();
+    this.postings = map(new File(dir, "forward.post")).asIntBuffer();
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() > Integer.MAX_VALUE) {
+        throw new IOException("Forward index files larger than 2GB are not supported: " + file);
+      }
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * @return The field of this index.
+   */
+  public String getField() {
+    return field;
+  }
+
+  /**
+   * @return The number of terms in the dictionary.
+   */
+  public int getNumTerms() {
+    return terms.length;
+  }
+
+  /**
+   * Get the id of a term.
+   *
+   * @param term The term.
+   * @return The term id, or -1 if the term is not in the field.
+   */
+  public int getTermId(String term) {
+    Integer termId = termIds.get(term);
+    return (termId == null) ? -1 : termId;
+  }
+
+  /**
+   * @param termId A term id.
+   * @return The term string.
+   */
+  public String getTerm(int termId) {
+    return terms[termId];
+  }
+
+  /**
+   * @param termId A term id.
+   * @return The collection term frequency of the term.
+   */
+  public long getCtf(int termId) {
+    return ctfs[termId];
+  }
+
+  /**
+   * @param termId A term id.
+   * @return The document frequency of the term.
+   */
+  public int getDf(int termId) {
+    return dfs[termId];
+  }
+
+  /**
+   * Get the vector of a document. Deleted documents and documents without the field have an empty
+   * vector.
+   *
+   * @param docid The internal id of the document.
+   * @return The document vector.
+   */
+  public DocVector getDocVector(int docid) {
+
+    if (docid < 0 || docid >= maxDoc) {
+      throw new IllegalArgumentException("Invalid docid " + docid);
+    }
+
+    int start = (int) offsets.get(docid);
+    int length = (int) (offsets.get(docid + 1) - start);
+    DocVector vector = new DocVector();
+    vector.termIds = new int[length];
+    vector.termFreqs = new int[length];
+    for (int i = 0; i < length; i++) {
+      vector.termIds[i] = postings.get(2 * start + i);
+      vector.termFreqs[i] = postings.get(2 * start + length + i);
+    }
+    return vector;
+  }
+
+}
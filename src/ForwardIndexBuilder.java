@@ -0,0 +1,161 @@
+/**
+ * ForwardIndexBuilder writes a forward index for one field of a Lucene index. Every term of the
+ * field gets an integer id, in the order of the Lucene term dictionary, and every document is
+ * stored as its sorted term ids and their frequencies. The index is read by ForwardIndex, so that
+ * relevance feedback and other document vector features work on integer arrays instead of term
+ * vectors and strings.
+ *
+ * The index is written to four files in the output directory: forward.meta (field and sizes),
+ * forward.dict (term, ctf and df, in term id order), forward.offs (the offset of every document's
+ * vector, in entries) and forward.post (for each document, its term ids followed by their tfs).
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+public class ForwardIndexBuilder {
+
+  public static final int MAGIC = 0x46574431;
+
+  private static String usage = "Usage:  java " + ForwardIndexBuilder.class.getName()
+      + " indexPath field outputDir\n\n";
+
+  /**
+   * @param args The index path, the field, and the output directory.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 3) {
+      QryEval.fatalError(usage);
+    }
+
+    long startTime = System.currentTimeMillis();
+
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+    String field = args[1];
+    File outputDir = new File(args[2]);
+    if (!outputDir.exists() && !outputDir.mkdirs()) {
+      QryEval.fatalError("Error: Cannot create " + outputDir);
+    }
+
+    long numEntries = build(field, outputDir);
+
+    long endTime = System.currentTimeMillis();
+    System.out.println("Entries: " + numEntries);
+    System.out.println("Running Time: " + (endTime - startTime) + " ms");
+  }
+
+  /**
+   * Build the forward index of a field. The documents must have term vectors for the field.
+   *
+   * @param field The field to index.
+   * @param outputDir The directory to write the index files to.
+   * @return The number of (document, term) entries written.
+   * @throws IOException
+   */
+  public static long build(String field, File outputDir) throws IOException {
+
+    // Write the dictionary, and keep the terms in memory to look up the ids of document terms.
+    DataOutputStream dict =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(outputDir,
+            "forward.dict"))));
+    List<BytesRef> termList = new ArrayList<BytesRef>();
+    Terms terms = MultiFields.getTerms(QryEval.READER, field);
+    TermsEnum termsEnum = (terms == null) ? null : terms.iterator(null);
+    BytesRef termBytes;
+    while (termsEnum != null && (termBytes = termsEnum.next()) != null) {
+      termList.add(BytesRef.deepCopyOf(termBytes));
+      dict.writeUTF(termBytes.utf8ToString());
+      dict.writeLong(termsEnum.totalTermFreq());
+      dict.writeInt(termsEnum.docFreq());
+    }
+    dict.close();
+    BytesRef[] dictionary = termList.toArray(new BytesRef[termList.size()]);
+
+    // Write the document vectors. Deleted documents and documents without the field get empty
+    // vectors, so that a document's vector can be found from its docid alone.
+    DataOutputStream offs =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(outputDir,
+            "forward.offs"))));
+    DataOutputStream post =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(outputDir,
+            "forward.post"))));
+    Bits liveDocs = MultiFields.getLiveDocs(QryEval.READER);
+    int maxDoc = QryEval.READER.maxDoc();
+    int[] termIds = new int[1024];
+    int[] termFreqs = new int[1024];
+    long numEntries = 0;
+    for (int docid = 0; docid < maxDoc; docid++) {
+      offs.writeLong(numEntries);
+
+      Terms vector =
+          (liveDocs == null || liveDocs.get(docid)) ? QryEval.READER.getTermVector(docid, field)
+              : null;
+      if (vector == null) {
+        continue;
+      }
+
+      // The terms of a term vector are sorted like the dictionary, so each search can start where
+      // the previous one ended.
+      int length = 0;
+      int from = 0;
+      TermsEnum vectorEnum = vector.iterator(null);
+      while ((termBytes = vectorEnum.next()) != null) {
+        int termId = Arrays.binarySearch(dictionary, from, dictionary.length, termBytes);
+        if (termId < 0) {
+          throw new IOException("Term " + termBytes.utf8ToString() + " of document " + docid
+              + " is not in the dictionary of field " + field);
+        }
+        if (length == termIds.length) {
+          termIds = Arrays.copyOf(termIds, length * 2);
+          termFreqs = Arrays.copyOf(termFreqs, length * 2);
+        }
+        termIds[length] = termId;
+        termFreqs[length] = (int) vectorEnum.totalTermFreq();
+        length++;
+        from = termId + 1;
+      }
+
+      for (int i = 0; i < length; i++) {
+        post.writeInt(termIds[i]);
+      }
+      for (int i = 0; i < length; i++) {
+        post.writeInt(termFreqs[i]);
+      }
+      numEntries += length;
+    }
+    offs.writeLong(numEntries);
+    offs.close();
+    post.close();
+
+    DataOutputStream meta =
+        new DataOutputStream(new FileOutputStream(new File(outputDir, "forward.meta")));
+    meta.writeInt(MAGIC);
+    meta.writeUTF(field);
+    meta.writeInt(maxDoc);
+    meta.writeInt(dictionary.length);
+    meta.writeLong(numEntries);
+    meta.close();
+
+    return numEntries;
+  }
+
+}
@@ -0,0 +1,411 @@
+/**
+ * ImpactIndex evaluates BM25 queries score-at-a-time over an impact-ordered index written by
+ * ImpactIndexBuilder. The postings file is memory-mapped. For a query, the segments of all query
+ * terms are processed in decreasing impact order, adding quantized impacts into per-document
+ * accumulators. Evaluation stops when no other document can enter the top k (the k'th score is
+ * above the (k+1)'th score plus the largest impact still unprocessed for every term), when all
+ * segments are processed, or when an optional postings budget is used up. The top k documents then
+ * get the impacts of the segments that were not processed, so they are ranked as if all segments
+ * had been processed, by score and then by external id as DocScore does. Scores are the sums of the
+ * dequantized impacts, so they approximate the exact BM25 scores.
+ *
+ * Only queries that are a #SUM of terms in the indexed field can be evaluated this way. Other
+ * queries must use the regular evaluation. An ImpactIndex reuses its accumulators between queries,
+ * so it must not be shared by several threads.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ImpactIndex {
+
+  // A run of postings of one query term that share the same impact.
+  private static class Segment {
+    private int term;
+    private int impact;
+    private int position;
+    private int count;
+  }
+
+  private String path;
+  private String field;
+  private double b;
+  private double k_1;
+  private double scale;
+  private Map<String, long[]> dictionary = new HashMap<String, long[]>();
+  private MappedByteBuffer postings;
+  private long postingsBudget;
+
+  private int[] accumulators;
+  private int[] touched = new int[1024];
+  private int numTouched;
+  private int[] heap = new int[16];
+
+  /**
+   * Open an impact-ordered index.
+   *
+   * @param dir The directory that holds the index files.
+   * @param postingsBudget The maximum number of postings to process for a query, or 0 for no
+   *        limit.
+   * @throws IOException
+   */
+  public ImpactIndex(File dir, long postingsBudget) throws IOException {
+
+    this.postingsBudget = postingsBudget;
+    this.path = dir.getCanonicalPath();
+
+    DataInputStream meta = new DataInputStream(new FileInputStream(new File(dir, "impact.meta")));
+    if (meta.readInt() != ImpactIndexBuilder.MAGIC) {
+      meta.close();
+      throw new IOException("Not an impact index: " + dir);
+    }
+    this.field = meta.readUTF();
+    this.b = meta.readDouble();
+    this.k_1 = meta.readDouble();
+    int numDocs = meta.readInt();
+    int maxDoc = meta.readInt();
+    long sumTotalTermFreq = meta.readLong();
+    this.scale = meta.readDouble() / ImpactIndexBuilder.MAX_BUCKET;
+    meta.close();
+
+    // The impacts depend on the collection statistics, so the index must match the open index.
+    if (numDocs != QryEval.READER.numDocs() || maxDoc != QryEval.READER.maxDoc()
+        || sumTotalTermFreq != QryEval.READER.getSumTotalTermFreq(field)) {
+      throw new IOException("Impact index " + dir + " was built for a different index");
+    }
+
+    DataInputStream dict =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir,
+            "impact.dict"))));
+    try {
+      while (true) {
+        String term = dict.readUTF();
+        long offset = dict.readLong();
+        long numSegments = dict.readInt();
+        dictionary.put(term, new long[] {offset, numSegments});
+      }
+    } catch (EOFException e) {
+      // End of the dictionary.
+    } finally {
+      dict.close();
+    }
+
+    RandomAccessFile post = new RandomAccessFile(new File(dir, "impact.post"), "r");
+    try {
+      if (post.length() > Integer.MAX_VALUE) {
+        throw new IOException("Impact index postings larger than 2GB are not supported: " + dir);
+      }
+      this.postings = post.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, post.length());
+    } finally {
+      post.close();
+    }
+
+    this.accumulators = new int[maxDoc];
+  }
+
+  /**
+   * Check whether this index holds impacts for the parameters of a retrieval model.
+   *
+   * @param r The retrieval model.
+   * @return True if the index can be used to evaluate queries for the model.
+   */
+  public boolean matches(RetrievalModel r) {
+    return r instanceof RetrievalModelBM25 && r.getParameter("b") == b
+        && r.getParameter("k_1") == k_1;
+  }
+
+  /**
+   * Return a string that identifies this index and how it evaluates queries. Its scores are
+   * quantized, so results from it are cached apart from exact results and from other impact
+   * indexes.
+   *
+   * @return The string version of this impact index.
+   */
+  @Override
+  public String toString() {
+    return "ImpactIndex(path=" + path + ",field=" + field + ",b=" + b + ",k_1=" + k_1 + ",scale="
+        + scale + ",budget=" + postingsBudget + ")";
+  }
+
+  /**
+   * Evaluate a query score-at-a-time and return its top k documents.
+   *
+   * @param qTree The query tree.
+   * @param k The number of documents to return.
+   * @return The result, or null if the query cannot be evaluated with this index.
+   * @throws IOException
+   */
+  public QryResult evaluate(Qryop qTree, int k) throws IOException {
+
+    List<String> terms = new ArrayList<String>();
+    List<Integer> multiplicities = new ArrayList<Integer>();
+    if (!getTerms(qTree, terms, multiplicities)) {
+      return null;
+    }
+
+    // Collect the segments of all query terms, and order them by decreasing impact. The sort is
+    // stable, so the segments of each term stay in their own (decreasing) order.
+    List<Segment> segments = new ArrayList<Segment>();
+    int[] segmentsLeft = new int[terms.size()];
+    int[] nextImpact = new int[terms.size()];
+    for (int t = 0; t < terms.size(); t++) {
+      // Terms without a positive idf are not in the impact index. They add nothing to the scores,
+      // but their documents still match, so such queries are left to the regular evaluation.
+      long[] entry = dictionary.get(terms.get(t));
+      if (entry == null) {
+        return null;
+      }
+      int position = (int) entry[0];
+      for (int i = 0; i < entry[1]; i++) {
+        Segment segment = new Segment();
+        segment.term = t;
+        segment.impact = (postings.get(position) & 0xff) * multiplicities.get(t);
+        segment.count = postings.getInt(position + 1);
+        segment.position = position + 5;
+        segments.add(segment);
+        position = segment.position + 4 * segment.count;
+      }
+      segmentsLeft[t] = (int) entry[1];
+    }
+    Collections.sort(segments, new Comparator<Segment>() {
+      @Override
+      public int compare(Segment s1, Segment s2) {
+        return s2.impact - s1.impact;
+      }
+    });
+    for (Segment segment : segments) {
+      if (nextImpact[segment.term] == 0) {
+        nextImpact[segment.term] = segment.impact;
+      }
+    }
+
+    // Process the segments until the top k documents are safe.
+    numTouched = 0;
+    long processed = 0;
+    int next = 0;
+    while (next < segments.size()) {
+      Segment segment = segments.get(next++);
+      for (int i = 0; i < segment.count; i++) {
+        int docid = postings.getInt(segment.position + 4 * i);
+        if (accumulators[docid] == 0) {
+          if (numTouched == touched.length) {
+            int[] newTouched = new int[touched.length * 2];
+            System.arraycopy(touched, 0, newTouched, 0, numTouched);
+            touched = newTouched;
+          }
+          touched[numTouched++] = docid;
+        }
+        accumulators[docid] += segment.impact;
+      }
+      processed += segment.count;
+
+      segmentsLeft[segment.term]--;
+      nextImpact[segment.term] = 0;
+      for (int s = next; segmentsLeft[segment.term] > 0 && s < segments.size(); s++) {
+        if (segments.get(s).term == segment.term) {
+          nextImpact[segment.term] = segments.get(s).impact;
+          break;
+        }
+      }
+
+      if (postingsBudget > 0 && processed >= postingsBudget) {
+        break;
+      }
+      // The safety check costs a pass over the accumulators, so it is only done when the impact
+      // level drops.
+      if (next < segments.size() && segments.get(next).impact < segment.impact
+          && isTopKSafe(k, sum(nextImpact))) {
+        break;
+      }
+    }
+
+    RunReport.countPostings((int) processed);
+
+    // Select the top k documents and complete their scores from the segments that were skipped.
+    // If no segment was skipped, all scores are final, and documents tied with the k'th are kept
+    // too, so that the tie is broken by external id.
+    int size = selectTopK(k);
+    int[] topDocs = new int[size];
+    System.arraycopy(heap, 0, topDocs, 0, size);
+    QryResult candidates = new QryResult();
+    if (next < segments.size()) {
+      completeScores(topDocs, segments, next);
+      for (int docid : topDocs) {
+        candidates.docScores.add(docid, accumulators[docid] * scale);
+      }
+    } else if (size > 0) {
+      int threshold = accumulators[heap[0]];
+      for (int i = 0; i < numTouched; i++) {
+        if (accumulators[touched[i]] >= threshold) {
+          candidates.docScores.add(touched[i], accumulators[touched[i]] * scale);
+        }
+      }
+    }
+
+    // Reset the accumulators for the next query.
+    for (int i = 0; i < numTouched; i++) {
+      accumulators[touched[i]] = 0;
+    }
+    numTouched = 0;
+
+    QryResult result = new QryResult();
+    DocScore ranked = new DocScore(candidates, k);
+    for (int i = 0; i < ranked.scores.size(); i++) {
+      result.docScores.add(ranked.getInternalDocid(i), ranked.getDocidScore(i));
+    }
+    return result;
+  }
+
+  /*
+   * Add the impacts of the segments from the first unprocessed one on to the accumulators of some
+   * documents. The docids of a segment are ascending, so each document is found by binary search.
+   */
+  private void completeScores(int[] docids, List<Segment> segments, int first) {
+    for (int s = first; s < segments.size(); s++) {
+      Segment segment = segments.get(s);
+      for (int docid : docids) {
+        int low = 0;
+        int high = segment.count - 1;
+        while (low <= high) {
+          int mid = (low + high) >>> 1;
+          int midDocid = postings.getInt(segment.position + 4 * mid);
+          if (midDocid < docid) {
+            low = mid + 1;
+          } else if (midDocid > docid) {
+            high = mid - 1;
+          } else {
+            accumulators[docid] += segment.impact;
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /*
+   * Get the terms of a query that is a #SUM of terms in the indexed field. Terms repeated by the
+   * query optimizer are counted as many times as they were repeated.
+   */
+  private boolean getTerms(Qryop qTree, List<String> terms, List<Integer> multiplicities) {
+
+    if (!(qTree instanceof QryopSlSum)) {
+      return false;
+    }
+
+    for (Qryop arg : qTree.args) {
+      int multiplicity = 1;
+      if (arg instanceof QryopSlScore) {
+        double weight = ((QryopSlScore) arg).getWeight();
+        if (weight != Math.rint(weight) || weight < 1) {
+          return false;
+        }
+        multiplicity = (int) weight;
+        arg = arg.args.get(0);
+      }
+      if (!(arg instanceof QryopIlTerm) || !((QryopIlTerm) arg).getField().equals(field)) {
+        return false;
+      }
+      terms.add(((QryopIlTerm) arg).getTerm());
+      multiplicities.add(multiplicity);
+    }
+
+    return true;
+  }
+
+  /*
+   * Check whether no document outside the current top k can reach the k'th document, even if it
+   * gets the largest remaining impact of every term. A document that could tie with the k'th could
+   * still enter the top k by external id, so the k'th must be strictly higher.
+   */
+  private boolean isTopKSafe(int k, int remaining) {
+
+    if (remaining == 0) {
+      return true;
+    }
+    if (numTouched < k) {
+      return false;
+    }
+
+    // In a min-heap of the top k + 1, the root is the (k+1)'th and the k'th is one of its children.
+    int size = selectTopK(k + 1);
+    int kPlusOneth = 0;
+    int kth = accumulators[heap[0]];
+    if (size > k) {
+      kPlusOneth = accumulators[heap[0]];
+      kth = accumulators[heap[1]];
+      if (size > 2 && accumulators[heap[2]] < kth) {
+        kth = accumulators[heap[2]];
+      }
+    }
+    return kth > kPlusOneth + remaining;
+  }
+
+  /*
+   * Select the documents with the k highest accumulators into a min-heap at the start of heap, and
+   * return the number of documents selected. The root of the heap is the lowest of them.
+   */
+  private int selectTopK(int k) {
+
+    if (heap.length < k) {
+      heap = new int[k];
+    }
+    int size = 0;
+    for (int i = 0; i < numTouched; i++) {
+      int docid = touched[i];
+      if (size < k) {
+        // Sift up.
+        int child = size++;
+        while (child > 0) {
+          int parent = (child - 1) / 2;
+          if (accumulators[heap[parent]] <= accumulators[docid]) {
+            break;
+          }
+          heap[child] = heap[parent];
+          child = parent;
+        }
+        heap[child] = docid;
+      } else if (accumulators[docid] > accumulators[heap[0]]) {
+        // Replace the root and sift down.
+        int parent = 0;
+        while (2 * parent + 1 < size) {
+          int child = 2 * parent + 1;
+          if (child + 1 < size && accumulators[heap[child + 1]] < accumulators[heap[child]]) {
+            child++;
+          }
+          if (accumulators[heap[child]] >= accumulators[docid]) {
+            break;
+          }
+          heap[parent] = heap[child];
+          parent = child;
+        }
+        heap[parent] = docid;
+      }
+    }
+    return size;
+  }
+
+  private static int sum(int[] values) {
+    int sum = 0;
+    for (int value : values) {
+      sum += value;
+    }
+    return sum;
+  }
+
+}
@@ -0,0 +1,199 @@
+/**
+ * ImpactIndexBuilder writes an impact-ordered BM25 index for one field of a Lucene index. The BM25
+ * score contribution (impact) of every posting is computed for a fixed b and k_1, and quantized into
+ * 8-bit buckets relative to the largest impact any posting can have. The postings of each term are
+ * grouped into segments of equal impact, written in decreasing impact order, so that ImpactIndex
+ * can evaluate queries score-at-a-time.
+ *
+ * The index is written to three files in the output directory: impact.meta (parameters and index
+ * statistics), impact.dict (term, offset and number of segments) and impact.post (for each segment,
+ * the impact, the number of documents and the ascending docids).
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+public class ImpactIndexBuilder {
+
+  public static final int MAGIC = 0x494d5031;
+  public static final int MAX_BUCKET = 255;
+
+  private static String usage = "Usage:  java " + ImpactIndexBuilder.class.getName()
+      + " indexPath field b k_1 outputDir\n\n";
+
+  /**
+   * @param args The index path, the field, the BM25 b and k_1 parameters, and the output directory.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 5) {
+      QryEval.fatalError(usage);
+    }
+
+    long startTime = System.currentTimeMillis();
+
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+    QryEval.dls = new DocLengthStore(QryEval.READER);
+    String field = args[1];
+    double b = Double.parseDouble(args[2]);
+    double k_1 = Double.parseDouble(args[3]);
+    File outputDir = new File(args[4]);
+    if (!outputDir.exists() && !outputDir.mkdirs()) {
+      QryEval.fatalError("Error: Cannot create " + outputDir);
+    }
+
+    int numTerms = build(field, b, k_1, outputDir);
+
+    long endTime = System.currentTimeMillis();
+    System.out.println("Terms: " + numTerms);
+    System.out.println("Running Time: " + (endTime - startTime) + " ms");
+  }
+
+  /**
+   * Build the impact-ordered index of a field.
+   *
+   * @param field The field to index.
+   * @param b The BM25 b parameter.
+   * @param k_1 The BM25 k_1 parameter.
+   * @param outputDir The directory to write the index files to.
+   * @return The number of terms written.
+   * @throws IOException
+   */
+  public static int build(String field, double b, double k_1, File outputDir) throws IOException {
+
+    double N = QryEval.READER.numDocs();
+    float[] norms = new BM25NormStore(QryEval.dls).getNorms(field, b, k_1);
+
+    // No posting can score more than a term that occurs in one document, with a tf weight of 1.
+    double maxImpact = Math.max(Math.log((N - 1 + 0.5) / (1 + 0.5)), Double.MIN_VALUE);
+
+    DataOutputStream dict =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(outputDir,
+            "impact.dict"))));
+    DataOutputStream post =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(outputDir,
+            "impact.post"))));
+
+    int numTerms = 0;
+    long offset = 0;
+    int[] docids = new int[1024];
+    int[] buckets = new int[1024];
+    int[] bucketStarts = new int[MAX_BUCKET + 1];
+    int[] sortedDocids = new int[1024];
+
+    Terms terms = MultiFields.getTerms(QryEval.READER, field);
+    TermsEnum termsEnum = (terms == null) ? null : terms.iterator(null);
+    BytesRef termBytes;
+    while (termsEnum != null && (termBytes = termsEnum.next()) != null) {
+
+      // Read the postings. The idf depends on the number of live documents, so the impacts can
+      // only be computed once the whole list has been read.
+      DocsEnum docsEnum =
+          termsEnum.docs(MultiFields.getLiveDocs(QryEval.READER), null, DocsEnum.FLAG_FREQS);
+      int df = 0;
+      while (docsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+        if (df == docids.length) {
+          docids = grow(docids);
+          buckets = grow(buckets);
+        }
+        docids[df] = docsEnum.docID();
+        buckets[df] = docsEnum.freq();
+        df++;
+      }
+
+      double idf = Math.max(Math.log((N - df + 0.5) / (df + 0.5)), 0.0);
+      if (df == 0 || idf == 0.0) {
+        continue;
+      }
+
+      // Quantize the impacts, and count the postings in each bucket.
+      Arrays.fill(bucketStarts, 0);
+      for (int i = 0; i < df; i++) {
+        double tf = buckets[i];
+        double impact = idf * tf / (tf + norms[docids[i]]);
+        int bucket = (int) Math.round(impact / maxImpact * MAX_BUCKET);
+        buckets[i] = Math.min(Math.max(bucket, 1), MAX_BUCKET);
+        bucketStarts[buckets[i]]++;
+      }
+
+      // Order the postings by decreasing bucket, keeping docid order within a bucket.
+      int numSegments = 0;
+      int start = 0;
+      for (int bucket = MAX_BUCKET; bucket >= 1; bucket--) {
+        int count = bucketStarts[bucket];
+        bucketStarts[bucket] = start;
+        start += count;
+        if (count > 0) {
+          numSegments++;
+        }
+      }
+      if (sortedDocids.length < df) {
+        sortedDocids = new int[docids.length];
+      }
+      int[] fill = bucketStarts.clone();
+      for (int i = 0; i < df; i++) {
+        sortedDocids[fill[buckets[i]]++] = docids[i];
+      }
+
+      dict.writeUTF(termBytes.utf8ToString());
+      dict.writeLong(offset);
+      dict.writeInt(numSegments);
+
+      for (int bucket = MAX_BUCKET; bucket >= 1; bucket--) {
+        int count = fill[bucket] - bucketStarts[bucket];
+        if (count == 0) {
+          continue;
+        }
+        post.writeByte(bucket);
+        post.writeInt(count);
+        for (int i = bucketStarts[bucket]; i < fill[bucket]; i++) {
+          post.writeInt(sortedDocids[i]);
+        }
+        offset += 1 + 4 + 4L * count;
+      }
+      numTerms++;
+    }
+
+    dict.close();
+    post.close();
+
+    DataOutputStream meta =
+        new DataOutputStream(new FileOutputStream(new File(outputDir, "impact.meta")));
+    meta.writeInt(MAGIC);
+    meta.writeUTF(field);
+    meta.writeDouble(b);
+    meta.writeDouble(k_1);
+    meta.writeInt(QryEval.READER.numDocs());
+    meta.writeInt(QryEval.READER.maxDoc());
+    meta.writeLong(QryEval.READER.getSumTotalTermFreq(field));
+    meta.writeDouble(maxImpact);
+    meta.writeInt(numTerms);
+    meta.close();
+
+    return numTerms;
+  }
+
+  private static int[] grow(int[] array) {
+    int[] newArray = new int[array.length * 2];
+    System.arraycopy(array, 0, newArray, 0, array.length);
+    return newArray;
+  }
+
+}
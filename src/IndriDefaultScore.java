@@ -0,0 +1,158 @@
+/**
+ * This class computes Indri default scores in closed form. The default score of a SCORE operator is
+ * p_mle * ((1 - lambda) * mu / (docLen + mu) + lambda). Weighted geometric means (AND, WAND) and
+ * weighted arithmetic means (WSUM) of such scores over a single field keep the same form with a
+ * different constant, so the default score of a whole subtree is one table lookup and a
+ * multiply-add per document instead of a walk over the subtree. Subtrees whose terms are in
+ * different fields have no closed form and fall back to the recursive computation.
+ * 
+ * @author KyleMao
+ *
+ */
+
+import java.util.List;
+
+public class IndriDefaultScore {
+
+  // The field the document lengths come from, or null if the default score is always 0.
+  private String field;
+  private double constant;
+  private double[] invLengths;
+  private double smoothing;
+  private double lambda;
+
+  private IndriDefaultScore(String field, double constant, double[] invLengths, double smoothing,
+      double lambda) {
+    this.field = field;
+    this.constant = constant;
+    this.invLengths = invLengths;
+    this.smoothing = smoothing;
+    this.lambda = lambda;
+  }
+
+  /**
+   * The default score of a SCORE operator.
+   * 
+   * @param field The field of the term.
+   * @param p_mle The maximum likelihood estimate of the term in the collection.
+   * @param mu The Dirichlet smoothing parameter.
+   * @param lambda The Jelinek-Mercer smoothing parameter.
+   * @param invLengths 1 / (docLen + mu) for all documents in the field.
+   * @return The default score.
+   */
+  public static IndriDefaultScore forTerm(String field, double p_mle, double mu, double lambda,
+      double[] invLengths) {
+    return new IndriDefaultScore(field, p_mle, invLengths, (1 - lambda) * mu, lambda);
+  }
+
+  /**
+   * A default score that is 0 for every document.
+   * 
+   * @return The default score.
+   */
+  public static IndriDefaultScore zero() {
+    return new IndriDefaultScore(null, 0.0, null, 0.0, 0.0);
+  }
+
+  /**
+   * The default score of a weighted geometric mean of default scores.
+   * 
+   * @param args The default scores of the arguments, which may contain null.
+   * @param weights The weights of the arguments, or null if all weights are equal.
+   * @return The default score, or null if it has no closed form.
+   */
+  public static IndriDefaultScore weightedProduct(List<IndriDefaultScore> args,
+      List<Double> weights) {
+
+    double sumW = sumWeights(args, weights);
+    IndriDefaultScore first = null;
+    double constant = 1.0;
+    for (int i = 0; i < args.size(); i++) {
+      IndriDefaultScore arg = args.get(i);
+      if (arg == null) {
+        return null;
+      } else if (arg.field == null) {
+        return zero();
+      } else if (first == null) {
+        first = arg;
+      } else if (!arg.isCompatible(first)) {
+        return null;
+      }
+      double w = (weights == null) ? 1.0 : weights.get(i);
+      constant *= Math.pow(arg.constant, w / sumW);
+    }
+
+    if (first == null) {
+      return zero();
+    }
+    return new IndriDefaultScore(first.field, constant, first.invLengths, first.smoothing,
+        first.lambda);
+  }
+
+  /**
+   * The default score of a weighted arithmetic mean of default scores.
+   * 
+   * @param args The default scores of the arguments, which may contain null.
+   * @param weights The weights of the arguments, or null if all weights are equal.
+   * @return The default score, or null if it has no closed form.
+   */
+  public static IndriDefaultScore weightedSum(List<IndriDefaultScore> args, List<Double> weights) {
+
+    double sumW = sumWeights(args, weights);
+    IndriDefaultScore first = null;
+    double constant = 0.0;
+    for (int i = 0; i < args.size(); i++) {
+      IndriDefaultScore arg = args.get(i);
+      if (arg == null) {
+        return null;
+      } else if (arg.field == null) {
+        continue;
+      } else if (first == null) {
+        first = arg;
+      } else if (!arg.isCompatible(first)) {
+        return null;
+      }
+      double w = (weights == null) ? 1.0 : weights.get(i);
+      constant += arg.constant * w / sumW;
+    }
+
+    if (first == null) {
+      return zero();
+    }
+    return new IndriDefaultScore(first.field, constant, first.invLengths, first.smoothing,
+        first.lambda);
+  }
+
+  /**
+   * Get the default score of a document.
+   * 
+   * @param docid The internal id of the document.
+   * @return The default score.
+   */
+  public double getScore(int docid) {
+    if (field == null) {
+      return 0.0;
+    }
+    return constant * (smoothing * invLengths[docid] + lambda);
+  }
+
+  /*
+   * Check whether two default scores depend on the document in the same way.
+   */
+  private boolean isCompatible(IndriDefaultScore other) {
+    return field.equals(other.field) && invLengths == other.invLengths
+        && smoothing == other.smoothing && lambda == other.lambda;
+  }
+
+  private static double sumWeights(List<IndriDefaultScore> args, List<Double> weights) {
+    if (weights == null) {
+      return args.size();
+    }
+    double sumW = 0.0;
+    for (Double w : weights) {
+      sumW += w;
+    }
+    return sumW;
+  }
+
+}
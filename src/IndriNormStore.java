@@ -0,0 +1,67 @@
+/**
+ * IndriNormStore keeps the Dirichlet smoothing normalization of every document, 1 / (docLen + mu),
+ * in a double array indexed by internal docid. One array is built for each combination of field and
+ * mu the first time it is needed, and is then shared by all queries and threads.
+ * 
+ * @author KyleMao
+ *
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class IndriNormStore {
+
+  private DocLengthStore dls;
+  private Map<String, double[]> norms = new ConcurrentHashMap<String, double[]>();
+
+  /**
+   * Constructor.
+   * 
+   * @param dls The document lengths the normalizations are computed from.
+   */
+  public IndriNormStore(DocLengthStore dls) {
+    this.dls = dls;
+  }
+
+  /**
+   * Returns 1 / (docLen + mu) for all documents in a field, indexed by internal docid. The array is
+   * shared and must not be modified.
+   * 
+   * @param field The field the documents are scored in.
+   * @param mu The Dirichlet smoothing parameter.
+   * @return The smoothing normalizations.
+   * @throws IOException
+   */
+  public double[] getInvLengths(String field, double mu) throws IOException {
+    String key = field + ':' + mu;
+    double[] fieldNorms = norms.get(key);
+    if (fieldNorms == null) {
+      fieldNorms = loadInvLengths(key, field, mu);
+    }
+    return fieldNorms;
+  }
+
+  /*
+   * Compute the normalizations for one combination of field and mu.
+   */
+  private synchronized double[] loadInvLengths(String key, String field, double mu)
+      throws IOException {
+
+    double[] fieldNorms = norms.get(key);
+    if (fieldNorms != null) {
+      return fieldNorms;
+    }
+
+    int[] docLengths = dls.getDocLengths(field);
+    fieldNorms = new double[docLengths.length];
+    for (int i = 0; i < docLengths.length; i++) {
+      fieldNorms[i] = 1.0 / ((double) docLengths[i] + mu);
+    }
+
+    norms.put(key, fieldNorms);
+    return fieldNorms;
+  }
+
+}
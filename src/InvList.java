@@ -21,20 +21,20 @@ public class InvList {
 
     public int docid = 0;
     public int tf = 0;
-    public Vector<Integer> positions = new Vector<Integer>();
+    public int[] positions;
 
     public DocPosting(int d, int... locations) {
       this.docid = d;
       this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
+      this.positions = locations;
     }
 
     public DocPosting(int d, List<Integer> locations) {
       this.docid = d;
       this.tf = locations.size();
+      this.positions = new int[this.tf];
       for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
+        this.positions[i] = locations.get(i);
     }
   }
 
@@ -101,6 +101,7 @@ public class InvList {
       this.df++;
       this.ctf += tf;
     }
+    RunReport.countPostings(this.df);
   }
 
   /**
@@ -127,6 +128,38 @@ public class InvList {
     return true;
   }
 
+  /**
+   * Append a posting to the posting list. Posting must be appended in docid order, otherwise this
+   * method fails. The first length positions are copied, so the array can be reused by the caller.
+   * 
+   * @param n The posting internal document id.
+   * @param positions An array of positions where the term occurs.
+   * @param length The number of positions to copy from the array.
+   * @result true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting(int docid, int[] positions, int length) {
+
+    if ((this.df > 1) && (this.postings.get(this.df - 1).docid >= docid))
+      return false;
+
+    DocPosting p = new DocPosting(docid, Arrays.copyOf(positions, length));
+
+    this.postings.add(p);
+    this.df++;
+    this.ctf += p.tf;
+    return true;
+  }
+
+  /**
+   * Get the positions in the n'th document of the inverted list.
+   * 
+   * @param n The index of the requested document.
+   * @return The positions of the term in the document, in increasing order.
+   */
+  public int[] getPositions(int n) {
+    return this.postings.get(n).positions;
+  }
+
   /**
    * Get the n'th document id from the inverted list.
    * 
@@ -159,7 +192,7 @@ public class InvList {
           + this.postings.elementAt(i).tf + ", locs: ");
 
       for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+        System.out.print(this.postings.elementAt(i).positions[j] + " ");
       }
 
       System.out.println();
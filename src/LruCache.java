@@ -0,0 +1,34 @@
+/**
+ * This class implements a map with a fixed capacity that evicts its least recently used entry when
+ * it is full. It is not synchronized; wrap it with Collections.synchronizedMap if it is shared by
+ * several threads.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+  private static final long serialVersionUID = 1L;
+
+  private int capacity;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The maximum number of entries to keep.
+   */
+  public LruCache(int capacity) {
+    super(16, 0.75f, true);
+    this.capacity = capacity;
+  }
+
+  @Override
+  protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+    return size() > capacity;
+  }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * ModelScorer is the scoring half of a retrieval model, compiled from its parameters. Query
+ * operators get it from RetrievalModel.getScorer, and call it instead of testing the type of the
+ * model and looking up its parameters by name. A model supplies three things:
+ *
+ * The family of the model, which decides the operators it supports and how they combine the scores
+ * of their arguments. Exact-match models take the min and max of the argument scores in #AND and
+ * #OR, sum models add them in #SUM, and language models mix probabilities in #AND, #WAND and #WSUM,
+ * with default scores for documents that do not match an argument.
+ *
+ * A term scorer for each inverted list, which holds everything that does not depend on the
+ * document, so that the score of a posting is a few arithmetic operations.
+ *
+ * The scores of a term in several fields, for #FIELDS. By default the term is scored as if the
+ * fields were one, with the term frequencies added up.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public abstract class ModelScorer {
+
+  /**
+   * How the operators of a family of retrieval models combine the scores of their arguments.
+   */
+  public enum Family {
+    EXACT_MATCH, SUM, LANGUAGE_MODEL
+  }
+
+  /**
+   * Scores the documents of one inverted list.
+   */
+  public abstract static class TermScorer {
+
+    /**
+     * Get the score of a document that contains the term.
+     *
+     * @param docid The internal id of the document.
+     * @param tf The frequency of the term in the document.
+     * @return The score.
+     */
+    public abstract double score(int docid, int tf);
+
+    /**
+     * Get the score of the documents that do not contain the term.
+     *
+     * @return The default score, or null if the family has no default scores.
+     */
+    public IndriDefaultScore getDefault() {
+      return null;
+    }
+  }
+
+  /**
+   * The scores of a term in several fields.
+   */
+  public static class FieldScores {
+
+    public ScoreList scores = new ScoreList();
+
+    // The default score of the term in each field, or null if the family has no default scores.
+    public List<IndriDefaultScore> fieldDefaults;
+  }
+
+  /**
+   * @return The family of the retrieval model.
+   */
+  public abstract Family getFamily();
+
+  /**
+   * Compile the scorer of an inverted list.
+   *
+   * @param field The field of the list.
+   * @param df The number of documents in the list.
+   * @param ctf The number of occurrences in the list.
+   * @param weight A multiplier of the score, e.g., the number of times the term occurs in a query.
+   * @return The term scorer.
+   * @throws IOException
+   */
+  public abstract TermScorer forTerm(String field, int df, long ctf, double weight)
+      throws IOException;
+
+  /**
+   * Score a term in several fields at once.
+   *
+   * @param invLists The inverted list of the term in each field.
+   * @param weights The weight of each field.
+   * @return The scores of the documents that contain the term in any field, by docid.
+   * @throws IOException
+   */
+  public FieldScores scoreFields(InvList[] invLists, List<Double> weights) throws IOException {
+
+    // Merge the lists into the total frequency of each document. The number of documents is only
+    // known after the merge, so the documents are scored afterwards.
+    int[] docids = new int[16];
+    int[] tfs = new int[16];
+    int df = 0;
+    long ctf = 0;
+    int[] cursors = new int[invLists.length];
+    int docid;
+    while ((docid = nextDocid(invLists, cursors)) != Integer.MAX_VALUE) {
+      int tf = 0;
+      for (int i = 0; i < invLists.length; i++) {
+        if (cursors[i] < invLists[i].df && invLists[i].getDocid(cursors[i]) == docid) {
+          tf += invLists[i].getTf(cursors[i]);
+          cursors[i]++;
+        }
+      }
+      if (df == docids.length) {
+        docids = Arrays.copyOf(docids, df * 2);
+        tfs = Arrays.copyOf(tfs, df * 2);
+      }
+      docids[df] = docid;
+      tfs[df] = tf;
+      df++;
+      ctf += tf;
+    }
+
+    TermScorer termScorer = forTerm(invLists[0].field, df, ctf, 1.0);
+    FieldScores result = new FieldScores();
+    for (int i = 0; i < df; i++) {
+      result.scores.add(docids[i], termScorer.score(docids[i], tfs[i]));
+    }
+    return result;
+  }
+
+  /**
+   * Get the smallest docid at the cursors of several inverted lists.
+   *
+   * @param invLists The inverted lists.
+   * @param cursors The current posting of each list.
+   * @return The smallest docid, or Integer.MAX_VALUE if all lists are done.
+   */
+  protected static int nextDocid(InvList[] invLists, int[] cursors) {
+    int minDocid = Integer.MAX_VALUE;
+    for (int i = 0; i < invLists.length; i++) {
+      if (cursors[i] < invLists[i].df) {
+        minDocid = Math.min(minDocid, invLists[i].getDocid(cursors[i]));
+      }
+    }
+    return minDocid;
+  }
+
+}
@@ -0,0 +1,351 @@
+/**
+ * PairCounts counts ordered pairs of terms of one #NEAR/n distance within a memory bound, and
+ * selects the most frequent pairs. Terms are numbered as they are first seen, and a pair is counted
+ * under the two numbers packed into a long, in an open-addressing table of primitive arrays. When
+ * the table fills up, its counts are sorted by pair and spilled to a temporary file as a run. Runs
+ * are merged into one, adding up the counts of each pair, whenever there are too many of them to
+ * read at once, and when the pairs are selected. A min-heap keeps the most frequent pairs.
+ *
+ * Memory holds the term numbers, the table, and the selected pairs. The counts are exact.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class PairCounts {
+
+  // The table has 2^20 slots of 12 bytes, and is spilled when it is three quarters full.
+  private static final int TABLE_BITS = 20;
+  private static final int MAX_SIZE = (1 << TABLE_BITS) / 4 * 3;
+
+  // The number of runs that are merged at once.
+  private static final int MAX_RUNS = 64;
+
+  private int distance;
+  private Map<String, Integer> termIds = new HashMap<String, Integer>();
+  private List<String> fields = new ArrayList<String>();
+  private List<String> terms = new ArrayList<String>();
+
+  // Packed pairs, where 0 is an empty slot, and their counts.
+  private long[] keys = new long[1 << TABLE_BITS];
+  private int[] counts = new int[1 << TABLE_BITS];
+  private int size = 0;
+  private List<File> runs = new ArrayList<File>();
+  private List<Integer> runSizes = new ArrayList<Integer>();
+
+  /**
+   * Constructor.
+   *
+   * @param distance The #NEAR distance of the pairs.
+   */
+  public PairCounts(int distance) {
+    this.distance = distance;
+    // Number the terms from 1, so that no pair is packed into 0.
+    fields.add(null);
+    terms.add(null);
+  }
+
+  /**
+   * Get the number of a term, numbering it if it is new.
+   *
+   * @param field The field of the term.
+   * @param term The term.
+   * @return The number of the term.
+   */
+  public int termId(String field, String term) {
+    String termKey = field + '\t' + term;
+    Integer id = termIds.get(termKey);
+    if (id == null) {
+      id = terms.size();
+      termIds.put(termKey, id);
+      fields.add(field);
+      terms.add(term);
+    }
+    return id;
+  }
+
+  /**
+   * Count an occurrence of a pair of terms of the same field.
+   *
+   * @param term1 The number of the first term.
+   * @param term2 The number of the second term.
+   * @throws IOException
+   */
+  public void count(int term1, int term2) throws IOException {
+
+    long key = ((long) term1 << 32) | term2;
+    int slot = slot(key);
+    if (keys[slot] == key) {
+      counts[slot]++;
+      return;
+    }
+
+    if (size == MAX_SIZE) {
+      spill();
+      slot = slot(key);
+    }
+    keys[slot] = key;
+    counts[slot] = 1;
+    size++;
+  }
+
+  /**
+   * Select the most frequent pairs, and delete the temporary files. Ties are broken by key, so that
+   * the selection is stable.
+   *
+   * @param maxPairs The number of pairs to select.
+   * @return The keys of the pairs, as BigramIndexBuilder.key makes them, most frequent first.
+   * @throws IOException
+   */
+  public List<String> select(int maxPairs) throws IOException {
+
+    // A min-heap of the selected pairs, with the least frequent at the root.
+    long[] heapKeys = new long[maxPairs];
+    int[] heapCounts = new int[maxPairs];
+    int heapSize = 0;
+
+    if (runs.isEmpty()) {
+      for (int slot = 0; slot < keys.length; slot++) {
+        if (keys[slot] != 0) {
+          heapSize = offer(heapKeys, heapCounts, heapSize, keys[slot], counts[slot]);
+        }
+      }
+    } else {
+      spill();
+      if (runs.size() > 1) {
+        mergeRuns();
+      }
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(0))));
+      try {
+        for (int i = runSizes.get(0); i > 0; i--) {
+          long key = in.readLong();
+          heapSize = offer(heapKeys, heapCounts, heapSize, key, in.readInt());
+        }
+      } finally {
+        in.close();
+        runs.get(0).delete();
+        runs.clear();
+        runSizes.clear();
+      }
+    }
+
+    // Empty the heap from the least frequent pair.
+    String[] pairs = new String[heapSize];
+    while (heapSize > 0) {
+      pairs[heapSize - 1] = pairKey(heapKeys[0]);
+      heapSize--;
+      heapKeys[0] = heapKeys[heapSize];
+      heapCounts[0] = heapCounts[heapSize];
+      siftDown(heapKeys, heapCounts, heapSize);
+    }
+    return Arrays.asList(pairs);
+  }
+
+  private int slot(long key) {
+    int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - TABLE_BITS));
+    while (keys[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & (keys.length - 1);
+    }
+    return slot;
+  }
+
+  /*
+   * Write the counts of the table to a run sorted by pair, and empty the table.
+   */
+  private void spill() throws IOException {
+
+    long[] sortedKeys = new long[size];
+    int n = 0;
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != 0) {
+        sortedKeys[n++] = keys[slot];
+      }
+    }
+    Arrays.sort(sortedKeys);
+
+    File run = File.createTempFile("bigram", ".run");
+    runs.add(run);
+    runSizes.add(size);
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+    try {
+      for (long key : sortedKeys) {
+        out.writeLong(key);
+        out.writeInt(counts[slot(key)]);
+      }
+    } finally {
+      out.close();
+    }
+
+    Arrays.fill(keys, 0);
+    size = 0;
+
+    if (runs.size() == MAX_RUNS) {
+      mergeRuns();
+    }
+  }
+
+  /*
+   * Merge the runs into one run, adding up the counts of each pair.
+   */
+  private void mergeRuns() throws IOException {
+
+    File merged = File.createTempFile("bigram", ".run");
+    int mergedSize = 0;
+    DataInputStream[] ins = new DataInputStream[runs.size()];
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), 1 << 16));
+    try {
+      // The runs are sorted by pair, so the counts of a pair are next to each other in all runs.
+      long[] runKeys = new long[runs.size()];
+      int[] runCounts = new int[runs.size()];
+      int[] runLeft = new int[runs.size()];
+      for (int i = 0; i < ins.length; i++) {
+        ins[i] = new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i))));
+        runLeft[i] = runSizes.get(i);
+        runKeys[i] = readPair(ins[i], runCounts, runLeft, i);
+      }
+      while (true) {
+        long key = Long.MAX_VALUE;
+        for (int i = 0; i < ins.length; i++) {
+          key = Math.min(key, runKeys[i]);
+        }
+        if (key == Long.MAX_VALUE) {
+          break;
+        }
+        int count = 0;
+        for (int i = 0; i < ins.length; i++) {
+          if (runKeys[i] == key) {
+            count += runCounts[i];
+            runKeys[i] = readPair(ins[i], runCounts, runLeft, i);
+          }
+        }
+        out.writeLong(key);
+        out.writeInt(count);
+        mergedSize++;
+      }
+    } finally {
+      out.close();
+      for (int i = 0; i < ins.length; i++) {
+        if (ins[i] != null) {
+          ins[i].close();
+        }
+        runs.get(i).delete();
+      }
+    }
+
+    runs.clear();
+    runSizes.clear();
+    runs.add(merged);
+    runSizes.add(mergedSize);
+  }
+
+  /*
+   * Read the next pair of a run and its count, or return Long.MAX_VALUE if the run is done.
+   */
+  private static long readPair(DataInputStream in, int[] runCounts, int[] runLeft, int run)
+      throws IOException {
+    if (runLeft[run] == 0) {
+      return Long.MAX_VALUE;
+    }
+    runLeft[run]--;
+    long key = in.readLong();
+    runCounts[run] = in.readInt();
+    return key;
+  }
+
+  private String pairKey(long key) {
+    int term1 = (int) (key >>> 32);
+    int term2 = (int) key;
+    return BigramIndexBuilder.key(fields.get(term1), terms.get(term1), terms.get(term2), distance);
+  }
+
+  /*
+   * Check whether a pair ranks below another one: it is less frequent, or as frequent with a larger
+   * key. Terms have no characters below the tab that separates the parts of a key, so keys compare
+   * like their field, first term and second term in turn.
+   */
+  private boolean isWorse(long key1, int count1, long key2, int count2) {
+    if (count1 != count2) {
+      return count1 < count2;
+    }
+    int term1 = (int) (key1 >>> 32);
+    int term2 = (int) (key2 >>> 32);
+    int comp = fields.get(term1).compareTo(fields.get(term2));
+    if (comp == 0) {
+      comp = terms.get(term1).compareTo(terms.get(term2));
+    }
+    if (comp == 0) {
+      comp = terms.get((int) key1).compareTo(terms.get((int) key2));
+    }
+    return comp > 0;
+  }
+
+  /*
+   * Add a pair to the heap of selected pairs if it ranks above the least frequent one, and return
+   * the new size of the heap.
+   */
+  private int offer(long[] heapKeys, int[] heapCounts, int heapSize, long key, int count) {
+
+    if (heapSize < heapKeys.length) {
+      int child = heapSize;
+      while (child > 0) {
+        int parent = (child - 1) / 2;
+        if (!isWorse(key, count, heapKeys[parent], heapCounts[parent])) {
+          break;
+        }
+        heapKeys[child] = heapKeys[parent];
+        heapCounts[child] = heapCounts[parent];
+        child = parent;
+      }
+      heapKeys[child] = key;
+      heapCounts[child] = count;
+      return heapSize + 1;
+    }
+
+    if (heapSize > 0 && isWorse(heapKeys[0], heapCounts[0], key, count)) {
+      heapKeys[0] = key;
+      heapCounts[0] = count;
+      siftDown(heapKeys, heapCounts, heapSize);
+    }
+    return heapSize;
+  }
+
+  private void siftDown(long[] heapKeys, int[] heapCounts, int heapSize) {
+    int parent = 0;
+    while (2 * parent + 1 < heapSize) {
+      int child = 2 * parent + 1;
+      if (child + 1 < heapSize
+          && isWorse(heapKeys[child + 1], heapCounts[child + 1], heapKeys[child],
+              heapCounts[child])) {
+        child++;
+      }
+      if (!isWorse(heapKeys[child], heapCounts[child], heapKeys[parent], heapCounts[parent])) {
+        break;
+      }
+      long key = heapKeys[parent];
+      int count = heapCounts[parent];
+      heapKeys[parent] = heapKeys[child];
+      heapCounts[parent] = heapCounts[child];
+      heapKeys[child] = key;
+      heapCounts[child] = count;
+      parent = child;
+    }
+  }
+
+}
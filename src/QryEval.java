@@ -10,7 +10,6 @@
 import java.io.*;
 import java.util.*;
 
-import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
@@ -24,6 +23,8 @@ public class QryEval {
   private static String usage = "Usage:  java " + System.getProperty("sun.java.command")
       + " paramFile\n\n";
   private static int MAX_RESULT = 100;
+  private static int PARSE_CACHE_SIZE = 10000;
+  private static int TERM_CACHE_SIZE = 100000;
 
   // The index file reader is accessible via a global variable. This
   // isn't great programming style, but the alternative is for every
@@ -32,6 +33,12 @@ public class QryEval {
 
   public static IndexReader READER;
   public static DocLengthStore dls;
+  public static BM25NormStore bm25Norms;
+  public static IndriNormStore indriNorms;
+  public static BigramIndex bigramIndex;
+  public static ScoreListCache scoreListCache;
+  public static long spillBudget;
+  public static File spillDir;
 
   // Create and configure an English analyzer that will be used for
   // query parsing.
@@ -44,6 +51,15 @@ public class QryEval {
     analyzer.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
   }
 
+  // Analyzed query terms, keyed by the raw term string.
+
+  private static Map<String, String[]> termCache = Collections
+      .synchronizedMap(new LruCache<String, String[]>(TERM_CACHE_SIZE));
+
+  // The query parser keeps a cache of parsed queries, which is shared by all queries in the run.
+
+  private static QryParser parser = new QryParser(PARSE_CACHE_SIZE);
+
   /**
    * @param args The only argument is the path to the parameter file.
    * @throws Exception
@@ -72,38 +88,133 @@ public class QryEval {
     }
 
     // create the output file
-    File evalOut = new File(params.get("trecEvalOutputPath"));
-    if (!evalOut.exists()) {
-      evalOut.createNewFile();
+    QryResultWriter.Format format = QryResultWriter.Format.TREC;
+    if (params.containsKey("outputFormat") && params.get("outputFormat").equals("jsonl")) {
+      format = QryResultWriter.Format.JSONL;
+    }
+    QryResultWriter writer =
+        new QryResultWriter(new File(params.get("trecEvalOutputPath")), format, MAX_RESULT);
+
+    // rewrite the query trees before evaluation if asked to
+    QryOptimizer optimizer = QryOptimizer.create(params);
+
+    // use precomputed lists for #NEAR/n term pairs if a bigram index is given
+    if (params.containsKey("bigramIndex")) {
+      bigramIndex = new BigramIndex(new File(params.get("bigramIndex")));
+    }
+
+    // reuse the score lists of SCORE operators that occur in several queries if given a budget
+    if (params.containsKey("scoreListCacheSize")) {
+      scoreListCache = new ScoreListCache(Long.parseLong(params.get("scoreListCacheSize")) << 20);
+    }
+
+    // bound the memory used by OR and SUM operators, spilling argument lists to disk if needed
+    if (params.containsKey("spillBudget")) {
+      spillBudget = Long.parseLong(params.get("spillBudget")) << 20;
+      if (params.containsKey("spillDir")) {
+        spillDir = new File(params.get("spillDir"));
+      }
+    }
+
+    // evaluate BM25 bag-of-words queries score-at-a-time if an impact-ordered index is given
+    ImpactIndex impactIndex = null;
+    long impactBudget = 0;
+    if (params.containsKey("BM25:impactIndex")) {
+      if (params.containsKey("BM25:impactBudget")) {
+        impactBudget = Long.parseLong(params.get("BM25:impactBudget"));
+      }
+      impactIndex = new ImpactIndex(new File(params.get("BM25:impactIndex")), impactBudget);
+      if (!impactIndex.matches(model)) {
+        fatalError("Error: The impact index was built for other BM25 parameters");
+      }
+    }
+
+    // reuse the results of queries evaluated before if a result cache is given
+    ResultCache resultCache = null;
+    if (params.containsKey("resultCache")) {
+      long cacheSize = 64;
+      if (params.containsKey("resultCacheSize")) {
+        cacheSize = Long.parseLong(params.get("resultCacheSize"));
+      }
+      resultCache =
+          new ResultCache(new File(params.get("resultCache")), cacheSize << 20, MAX_RESULT);
     }
-    BufferedWriter writer = new BufferedWriter(new FileWriter(evalOut.getAbsoluteFile()));
 
     // for relevance feedback
+    boolean fb = params.containsKey("fb") && params.get("fb").equals("true");
     QryEvalFb queryFb = null;
-    if (params.containsKey("fb") && params.get("fb").equals("true")) {
+    if (fb) {
       queryFb = new QryEvalFb(params, model);
     }
 
-    // perform the queries
-    Scanner in = new Scanner(new BufferedReader(new FileReader(params.get("queryFilePath"))));
-    while (in.hasNextLine()) {
-      String qLine = in.nextLine();
-      String queryId = qLine.substring(0, qLine.indexOf(':'));
-      String query = qLine.substring(qLine.indexOf(':') + 1);
-      Qryop qTree = parseQuery(query, model);
-      QryResult result = null;
-      if (params.containsKey("fb") && params.get("fb").equals("true")) {
-        result = queryFb.evaluate(qTree, queryId, query);
-      } else {
-        result = qTree.evaluate(model);
+    // evaluate Unranked Boolean queries with docid bitmaps unless asked not to
+    QryEvalBitmap bitmapEval = null;
+    if (model instanceof RetrievalModelUnrankedBoolean
+        && !(params.containsKey("UnrankedBoolean:bitmap") && params.get("UnrankedBoolean:bitmap")
+            .equals("false"))) {
+      bitmapEval = new QryEvalBitmap(model);
+    }
+
+    QryPipeline.Evaluator evaluator =
+        createEvaluator(model, queryFb, impactIndex, resultCache, bitmapEval);
+
+    // measure every query, and write a report of the run
+    RunReport report = new RunReport(model, fb);
+    evaluator = report.wrap(evaluator);
+
+    // perform the queries, either one at a time or in a pipeline of concurrent stages
+    if (params.containsKey("pipeline") && params.get("pipeline").equals("true")) {
+      int evalThreads = Runtime.getRuntime().availableProcessors();
+      if (params.containsKey("pipeline:evalThreads")) {
+        evalThreads = Integer.parseInt(params.get("pipeline:evalThreads"));
+      }
+      if (fb) {
+        // the expansion queries are written in the order the queries are evaluated
+        evalThreads = 1;
       }
-      writeResults(writer, queryId, result);
+      int formatThreads = 1;
+      if (params.containsKey("pipeline:formatThreads")) {
+        formatThreads = Integer.parseInt(params.get("pipeline:formatThreads"));
+      }
+      int queueSize = 64;
+      if (params.containsKey("pipeline:queueSize")) {
+        queueSize = Integer.parseInt(params.get("pipeline:queueSize"));
+      }
+      new QryPipeline(new File(params.get("queryFilePath")), model, optimizer, evaluator, writer,
+          evalThreads, formatThreads, queueSize).run();
+    } else {
+      Scanner in = new Scanner(new BufferedReader(new FileReader(params.get("queryFilePath"))));
+      while (in.hasNextLine()) {
+        String qLine = in.nextLine();
+        String queryId = qLine.substring(0, qLine.indexOf(':'));
+        String query = qLine.substring(qLine.indexOf(':') + 1);
+        Qryop qTree;
+        try {
+          qTree = parseQuery(query, model);
+        } catch (QrySyntaxException e) {
+          System.err.println("Error: Query " + queryId + ": " + e.getMessage());
+          writer.write(queryId, new QryResult());
+          continue;
+        }
+        if (optimizer != null) {
+          qTree = optimizer.optimize(qTree, model);
+        }
+        writer.write(queryId, evaluator.evaluate(qTree, queryId, query));
+      }
+      in.close();
     }
-    in.close();
     writer.close();
+    if (resultCache != null) {
+      resultCache.close();
+    }
+    String reportPath = params.get("trecEvalOutputPath") + ".report.json";
+    if (params.containsKey("reportPath")) {
+      reportPath = params.get("reportPath");
+    }
+    report.write(new File(reportPath));
 
     // for relevance feedback
-    if (params.containsKey("fb") && params.get("fb").equals("true")) {
+    if (fb) {
       queryFb.finish();
     }
 
@@ -114,133 +225,99 @@ public class QryEval {
   }
 
   /**
-   * parseQuery converts a query string into a query tree.
+   * Create the evaluator of parsed queries. It uses relevance feedback, the result cache, the
+   * impact index and the bitmap evaluator when they are given, and evaluates the query tree
+   * otherwise. The impact index reuses its accumulators, so it is only used by one thread at a
+   * time.
    * 
-   * @param qString A string containing a query
-   * @param r The retrieval model for the query
-   * @return currentOp
-   * @throws IOException
+   * @param model The retrieval model.
+   * @param queryFb Relevance feedback, or null.
+   * @param impactIndex The impact-ordered index, or null.
+   * @param resultCache The result cache, or null.
+   * @param bitmapEval The bitmap evaluator for Unranked Boolean, or null.
+   * @return The evaluator.
    */
-  protected static Qryop parseQuery(String qString, RetrievalModel r) throws IOException {
-
-    Qryop currentOp = null;
-    Stack<Qryop> stack = new Stack<Qryop>();
+  private static QryPipeline.Evaluator createEvaluator(final RetrievalModel model,
+      final QryEvalFb queryFb, final ImpactIndex impactIndex, final ResultCache resultCache,
+      final QryEvalBitmap bitmapEval) {
 
-    // Add a default query operator to an unstructured query. This
-    // is a tiny bit easier if unnecessary whitespace is removed.
-    qString = qString.trim();
-    // Add default operator for different retrieval models
-    if (r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean) {
-      qString = "#OR(" + qString + ")";
-    } else if (r instanceof RetrievalModelIndri) {
-      qString = "#AND(" + qString + ")";
-    } else if (r instanceof RetrievalModelBM25) {
-      qString = "#SUM(" + qString + ")";
-    }
+    return new QryPipeline.Evaluator() {
+      @Override
+      public QryResult evaluate(Qryop qTree, String queryId, String query) throws Exception {
 
-    // Tokenize the query.
-    StringTokenizer tokens = new StringTokenizer(qString, "\t\n\r ,()", true);
-    String token = null;
-
-    // Each pass of the loop processes one token. To improve
-    // efficiency and clarity, the query operator on the top of the
-    // stack is also stored in currentOp.
-    while (tokens.hasMoreTokens()) {
-
-      token = tokens.nextToken();
-
-      if (token.matches("[ ,(\t\n\r]")) {
-        // Ignore most delimiters.
-      } else if (token.equalsIgnoreCase("#and")) {
-        currentOp = new QryopSlAnd();
-        stack.push(currentOp);
-      } else if (token.equalsIgnoreCase("#or")) {
-        currentOp = new QryopSlOr();
-        stack.push(currentOp);
-      } else if (token.equalsIgnoreCase("#syn")) {
-        currentOp = new QryopIlSyn();
-        stack.push(currentOp);
-      } else if (token.equalsIgnoreCase("#sum")) {
-        currentOp = new QryopSlSum();
-        stack.push(currentOp);
-      } else if (token.equalsIgnoreCase("#wand")) {
-        currentOp = new QryopSlWand();
-        stack.push(currentOp);
-      } else if (token.equalsIgnoreCase("#wsum")) {
-        currentOp = new QryopSlWsum();
-        stack.push(currentOp);
-      } else if (token.toLowerCase().startsWith("#near")) {
-        currentOp = new QryopIlNear(Integer.parseInt(token.substring(token.indexOf('/') + 1)));
-        stack.push(currentOp);
-      } else if (token.toLowerCase().startsWith("#window")) {
-        currentOp = new QryopIlWindow(Integer.parseInt(token.substring(token.indexOf('/') + 1)));
-        stack.push(currentOp);
-      } else if (token.startsWith(")")) { // Finish current query operator.
-        // If the current query operator is not an argument to
-        // another query operator (i.e., the stack is empty when it
-        // is removed), we're done (assuming correct syntax - see
-        // below). Otherwise, add the current operator as an
-        // argument to the higher-level operator, and shift
-        // processing back to the higher-level operator.
-        stack.pop();
-        if (stack.empty())
-          break;
-        Qryop arg = currentOp;
-        if (arg.args.size() > 0) {
-          currentOp = stack.peek();
-          currentOp.add(arg);
+        if (queryFb != null) {
+          return queryFb.evaluate(qTree, queryId, query);
         }
-      } else if (isNumeric(token) && (currentOp != null) && (currentOp.needWeight())) {
-        currentOp.addWeight(Double.parseDouble(token));
-      } else {
-        // Lexical processing of the token before creating the query term, and check to see whether
-        // the token specifies a particular field (e.g., apple.title).
-        String[] termAndField = token.split("\\.");
-        String term;
-        String field;
-        if (termAndField.length == 2) {
-          field = termAndField[1];
-          if (!(field.equalsIgnoreCase("url") || field.equalsIgnoreCase("keywords")
-              || field.equalsIgnoreCase("title") || field.equalsIgnoreCase("body")
-              || field.equalsIgnoreCase("inlink"))) {
-            term = token;
-            field = "body";
-          } else {
-            term = termAndField[0];
+
+        String cacheKey = null;
+        QryResult result = null;
+        if (resultCache != null) {
+          // an impact evaluation has quantized scores, so it is cached apart from exact results
+          cacheKey = model + "\n" + qTree;
+          if (impactIndex != null) {
+            cacheKey += "\n" + impactIndex;
+          }
+          result = resultCache.get(cacheKey);
+          if (result != null) {
+            return result;
           }
-        } else {
-          term = token;
-          field = "body";
         }
 
-        String[] processedToken = tokenizeQuery(term);
-        if (processedToken.length > 1) {
-          System.err.println("Error: Invalid query term.");
-          return null;
-        } else if (processedToken.length > 0) {
-          currentOp.add(new QryopIlTerm(processedToken[0], field));
-        } else if (!currentOp.needWeight()) {
-          currentOp.removeWeight();
+        if (impactIndex != null) {
+          synchronized (impactIndex) {
+            result = impactIndex.evaluate(qTree, MAX_RESULT);
+          }
+        }
+        if (result == null && bitmapEval != null) {
+          result = bitmapEval.evaluate(qTree);
+        }
+        if (result == null) {
+          result = qTree.evaluate(model);
         }
+        if (resultCache != null) {
+          resultCache.put(cacheKey, result);
+        }
+        return result;
       }
-    }
+    };
+  }
 
-    // A broken structured query can leave unprocessed tokens on the
-    // stack, so check for that.
-    if (tokens.hasMoreTokens()) {
-      System.err.println("Error:  Query syntax is incorrect.  " + qString);
-      return null;
+  /**
+   * parseQuery converts a query string into a query tree. The query is wrapped in the default query
+   * operator of the retrieval model.
+   * 
+   * @param qString A string containing a query
+   * @param r The retrieval model for the query, or null if the query string is a single query
+   *        operator that needs no default operator
+   * @return currentOp
+   * @throws IOException
+   * @throws QrySyntaxException
+   */
+  protected static Qryop parseQuery(String qString, RetrievalModel r) throws IOException,
+      QrySyntaxException {
+
+    // Add default operator for different retrieval models
+    QryParser.OpType defaultOp = null;
+    ModelScorer.Family family = (r == null) ? null : r.getScorer().getFamily();
+    if (family == ModelScorer.Family.EXACT_MATCH) {
+      defaultOp = QryParser.OpType.OR;
+    } else if (family == ModelScorer.Family.LANGUAGE_MODEL) {
+      defaultOp = QryParser.OpType.AND;
+    } else if (family == ModelScorer.Family.SUM) {
+      defaultOp = QryParser.OpType.SUM;
     }
 
-    return currentOp;
+    return parser.parse(qString, defaultOp);
   }
 
-
   /**
    * Given a query string, returns the terms one at a time with stopwords removed and the terms
    * stemmed using the Krovetz stemmer.
    * 
-   * Use this method to process raw query terms.
+   * Use this method to process raw query terms. The analyzer reuses its token stream components
+   * within a thread, and the result for each distinct query string is cached, so the stemmer runs
+   * once per surface form across a query set. The returned array is shared and must not be
+   * modified.
    * 
    * @param query String containing query
    * @return Array of query tokens
@@ -248,18 +325,28 @@ public class QryEval {
    */
   static String[] tokenizeQuery(String query) throws IOException {
 
-    TokenStreamComponents comp = analyzer.createComponents("dummy", new StringReader(query));
-    TokenStream tokenStream = comp.getTokenStream();
+    String[] cached = termCache.get(query);
+    if (cached != null) {
+      return cached;
+    }
 
+    TokenStream tokenStream = analyzer.tokenStream("dummy", new StringReader(query));
     CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
-    tokenStream.reset();
 
     List<String> tokens = new ArrayList<String>();
-    while (tokenStream.incrementToken()) {
-      String term = charTermAttribute.toString();
-      tokens.add(term);
+    try {
+      tokenStream.reset();
+      while (tokenStream.incrementToken()) {
+        tokens.add(charTermAttribute.toString());
+      }
+      tokenStream.end();
+    } finally {
+      tokenStream.close();
     }
-    return tokens.toArray(new String[tokens.size()]);
+
+    String[] result = tokens.toArray(new String[tokens.size()]);
+    termCache.put(query, result);
+    return result;
   }
 
   /**
@@ -313,40 +400,19 @@ public class QryEval {
       model.setParameter("mu", Integer.parseInt(params.get("Indri:mu")));
       model.setParameter("lambda", Double.parseDouble(params.get("Indri:lambda")));
       dls = new DocLengthStore(READER);
+      indriNorms = new IndriNormStore(dls);
     } else if (modelName.equals("BM25")) {
       model = new RetrievalModelBM25();
       model.setParameter("b", Double.parseDouble(params.get("BM25:b")));
       model.setParameter("k_1", Double.parseDouble(params.get("BM25:k_1")));
       model.setParameter("k_3", Double.parseDouble(params.get("BM25:k_3")));
       dls = new DocLengthStore(READER);
+      bm25Norms = new BM25NormStore(dls);
     }
 
     return model;
   }
 
-  /**
-   * Write the query results into file.
-   * 
-   * @param queryId ID of the query
-   * @param result Result of the query
-   * @throws IOException
-   */
-  static void writeResults(BufferedWriter writer, String queryId, QryResult result)
-      throws IOException {
-
-    if (result.docScores.scores.size() < 1) {
-      writer.write(queryId + " Q0 dummy 1 0 zexim\n");
-    } else {
-      DocScore docScore = new DocScore(result);
-      for (int i = 0; i < docScore.scores.size() && i < MAX_RESULT; i++) {
-        String line =
-            String.format("%s Q0 %s %d %f zexim\n", queryId, docScore.getExternalDocid(i), i + 1,
-                docScore.getDocidScore(i));
-        writer.write(line);
-      }
-    }
-  }
-
   /**
    * Write an error message and exit. This can be done in other ways, but I wanted something that
    * takes just one statement so that it is easy to insert checks without cluttering the code.
@@ -395,21 +461,6 @@ public class QryEval {
     }
   }
 
-  /*
-   * Check whether a String is a number.
-   * 
-   * @param str The String to be tested.
-   */
-  @SuppressWarnings("unused")
-  private static boolean isNumeric(String str) {
-    try {
-      double d = Double.parseDouble(str);
-    } catch (NumberFormatException e) {
-      return false;
-    }
-    return true;
-  }
-
   /**
    * Print a message indicating the amount of memory used. The caller can indicate whether garbage
    * collection should be performed, which slows the program but reduces memory usage.
@@ -0,0 +1,157 @@
+/**
+ * QryEvalBitmap evaluates queries for the Unranked Boolean retrieval model with docid bitmaps
+ * instead of score lists. Unranked Boolean gives every matching document a score of 1.0, so only
+ * the set of matching documents matters. The documents of a term are read from the index without
+ * frequencies or positions, #AND and #OR are intersections and unions of DocBitmaps, and no score
+ * is computed until the final result.
+ *
+ * #NEAR/n and #WINDOW/n need positions, so they are evaluated as usual and their inverted lists are
+ * turned into bitmaps. So are operators that have no bitmap form here.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+public class QryEvalBitmap {
+
+  private RetrievalModel model;
+
+  /**
+   * Constructor.
+   *
+   * @param model The retrieval model, which is used for the operators that are evaluated as usual.
+   */
+  public QryEvalBitmap(RetrievalModel model) {
+    this.model = model;
+  }
+
+  /**
+   * Evaluate a query. The result lists the matching documents by docid, each with a score of 1.0.
+   *
+   * @param qTree The query tree.
+   * @return The result of the query.
+   * @throws IOException
+   */
+  public QryResult evaluate(Qryop qTree) throws IOException {
+
+    int[] docids = evaluateBitmap(qTree).toArray();
+    QryResult result = new QryResult();
+    for (int docid : docids) {
+      result.docScores.add(docid, 1.0);
+    }
+    return result;
+  }
+
+  /*
+   * The documents that match a query operator.
+   */
+  private DocBitmap evaluateBitmap(Qryop op) throws IOException {
+
+    if (op instanceof QryopIlTerm) {
+      return termBitmap((QryopIlTerm) op);
+    } else if (op.args.isEmpty()
+        && (op instanceof QryopSlAnd || op instanceof QryopSlOr || op instanceof QryopIlSyn
+            || op instanceof QryopSlFields)) {
+      // A query of stopwords leaves the default operator without arguments. It matches nothing.
+      return new DocBitmap();
+    } else if (op instanceof QryopSlAnd) {
+      DocBitmap[] bitmaps = argBitmaps(op);
+      // Intersect the smallest sets first, so the intermediate sets stay small.
+      Arrays.sort(bitmaps, new Comparator<DocBitmap>() {
+        @Override
+        public int compare(DocBitmap b1, DocBitmap b2) {
+          return b1.cardinality() - b2.cardinality();
+        }
+      });
+      DocBitmap result = bitmaps[0];
+      for (int i = 1; i < bitmaps.length && result.cardinality() > 0; i++) {
+        result = DocBitmap.and(result, bitmaps[i]);
+      }
+      return result;
+    } else if (op instanceof QryopSlOr || op instanceof QryopSlFields
+        || (op instanceof QryopIlSyn && isTermSyn(op))) {
+      DocBitmap result = new DocBitmap();
+      for (DocBitmap bitmap : argBitmaps(op)) {
+        result = DocBitmap.or(result, bitmap);
+      }
+      return result;
+    } else if (op instanceof QryopSlScore) {
+      return evaluateBitmap(op.args.get(0));
+    }
+
+    // Everything else is evaluated as usual.
+    QryResult result = op.evaluate(model);
+    DocBitmap bitmap = new DocBitmap();
+    if (op instanceof QryopIl) {
+      for (int i = 0; i < result.invertedList.df; i++) {
+        bitmap.add(result.invertedList.getDocid(i));
+      }
+    } else {
+      int[] docids = new int[result.docScores.scores.size()];
+      for (int i = 0; i < docids.length; i++) {
+        docids[i] = result.docScores.getDocid(i);
+      }
+      Arrays.sort(docids);
+      for (int i = 0; i < docids.length; i++) {
+        if (i == 0 || docids[i] != docids[i - 1]) {
+          bitmap.add(docids[i]);
+        }
+      }
+    }
+    return bitmap;
+  }
+
+  private DocBitmap[] argBitmaps(Qryop op) throws IOException {
+    DocBitmap[] bitmaps = new DocBitmap[op.args.size()];
+    for (int i = 0; i < bitmaps.length; i++) {
+      bitmaps[i] = evaluateBitmap(op.args.get(i));
+    }
+    return bitmaps;
+  }
+
+  /*
+   * Check whether the arguments of a #SYN are terms of one field. Other #SYN operators are evaluated
+   * as usual, so they get the same argument checks as with score lists.
+   */
+  private static boolean isTermSyn(Qryop op) {
+    for (Qryop arg : op.args) {
+      if (!(arg instanceof QryopIlTerm)
+          || !((QryopIlTerm) arg).getField().equals(((QryopIlTerm) op.args.get(0)).getField())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * The documents that contain a term, read without frequencies or positions.
+   */
+  private static DocBitmap termBitmap(QryopIlTerm term) throws IOException {
+
+    DocBitmap bitmap = new DocBitmap();
+    DocsEnum docs =
+        MultiFields.getTermDocsEnum(QryEval.READER, MultiFields.getLiveDocs(QryEval.READER),
+            term.getField(), new BytesRef(term.getTerm()), DocsEnum.FLAG_NONE);
+    if (docs == null) {
+      return bitmap;
+    }
+
+    int df = 0;
+    while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      bitmap.add(docs.docID());
+      df++;
+    }
+    RunReport.countPostings(df);
+    return bitmap;
+  }
+
+}
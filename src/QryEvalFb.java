@@ -5,20 +5,15 @@
  * 
  */
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.PriorityQueue;
-import java.util.Scanner;
 
 public class QryEvalFb {
 
@@ -28,8 +23,9 @@ public class QryEvalFb {
   private int fbMu;
   private double fbOrigWeight;
   private BufferedWriter fbExpansionQueryWriter;
-  private boolean hasInitialRankings;
-  private Map<String, List<String>> initialRankings;
+  private RankingFile initialRankings;
+  private QryOptimizer optimizer;
+  private ForwardIndex forwardIndex;
 
   /**
    * Constructor. Reads necessary inputs. If initial ranking file is provided, reads in the ranking
@@ -52,6 +48,13 @@ public class QryEvalFb {
     this.fbTerms = Integer.parseInt(params.get("fbTerms"));
     this.fbMu = Integer.parseInt(params.get("fbMu"));
     this.fbOrigWeight = Double.parseDouble(params.get("fbOrigWeight"));
+    this.optimizer = QryOptimizer.create(params);
+    if (params.containsKey("fbForwardIndex")) {
+      this.forwardIndex = new ForwardIndex(new File(params.get("fbForwardIndex")));
+      if (!forwardIndex.getField().equals("body")) {
+        throw new IOException("The feedback forward index must be built for the body field");
+      }
+    }
     if (params.containsKey("fbExpansionQueryFile")) {
       this.fbExpansionQueryWriter =
           new BufferedWriter(new FileWriter(new File(params.get("fbExpansionQueryFile"))));
@@ -59,27 +62,11 @@ public class QryEvalFb {
       this.fbExpansionQueryWriter = null;
     }
 
-    // Read the initial ranking file if available
+    // Open the initial ranking file if available. Its rows are read when a query needs them.
     if (params.containsKey("fbInitialRankingFile")) {
-      this.hasInitialRankings = true;
-      this.initialRankings = new HashMap<String, List<String>>();
-      Scanner rankingScanner =
-          new Scanner(new BufferedReader(new FileReader(params.get("fbInitialRankingFile"))));
-      while (rankingScanner.hasNextLine()) {
-        String line = rankingScanner.nextLine();
-        String queryId = line.split(" ")[0];
-        if (this.initialRankings.containsKey(queryId)) {
-          if (this.initialRankings.get(queryId).size() < this.fbDocs) {
-            this.initialRankings.get(queryId).add(line);
-          }
-        } else {
-          this.initialRankings.put(queryId, new ArrayList<String>());
-          this.initialRankings.get(queryId).add(line);
-        }
-      }
-      rankingScanner.close();
+      this.initialRankings = new RankingFile(new File(params.get("fbInitialRankingFile")));
     } else {
-      this.hasInitialRankings = false;
+      this.initialRankings = null;
     }
   }
 
@@ -93,6 +80,9 @@ public class QryEvalFb {
     if (fbExpansionQueryWriter != null) {
       fbExpansionQueryWriter.close();
     }
+    if (initialRankings != null) {
+      initialRankings.close();
+    }
   }
 
   /**
@@ -107,18 +97,18 @@ public class QryEvalFb {
 
     // A map from internal document ID to its initial Indri score
     Map<Integer, Double> indriDocScores = new HashMap<Integer, Double>();
-    if (hasInitialRankings) {
-      // Get the scores from the initial ranking file
-      for (String ranking : initialRankings.get(queryId)) {
-        String[] parts = ranking.split(" ");
-        indriDocScores.put(QryEval.getInternalDocid(parts[2]), Double.parseDouble(parts[4]));
+    if (initialRankings != null) {
+      // Get the scores of the top fbDocs documents from the initial ranking file
+      RankingFile.Ranking ranking = initialRankings.getRanking(queryId, fbDocs);
+      for (int i = 0; i < ranking.size(); i++) {
+        indriDocScores.put(ranking.getDocid(i), ranking.getScore(i));
       }
     } else {
-      // Use the initial query to retrieve documents and then get the scores
-      DocScore docScore = new DocScore(qTree.evaluate(model));
-      for (int i = 0; i < fbDocs && i < docScore.scores.size(); i++) {
-        indriDocScores.put(QryEval.getInternalDocid(docScore.getExternalDocid(i)),
-            docScore.getDocidScore(i));
+      // Use the initial query to retrieve documents and then get the scores. The top documents keep
+      // their internal ids, so no external ids are needed.
+      DocScore docScore = new DocScore(qTree.evaluate(model), fbDocs);
+      for (int i = 0; i < docScore.scores.size(); i++) {
+        indriDocScores.put(docScore.getInternalDocid(i), docScore.getDocidScore(i));
       }
     }
 
@@ -130,102 +120,68 @@ public class QryEvalFb {
       fbExpansionQueryWriter.write(queryId + ": " + expansionQuery + '\n');
     }
 
-    // Create a combined query and use the combined query to retrieve documents
-    String combinedQuery =
-        "#WAND(" + fbOrigWeight + " #AND(" + query + ") " + (1 - fbOrigWeight) + " "
-            + expansionQuery + ")";
-    Qryop expandedQTree = QryEval.parseQuery(combinedQuery, model);
+    // Create a combined query and use the combined query to retrieve documents. The original query
+    // was parsed before, so its tree comes from the parser's cache.
+    QryopSlWand combinedOp = new QryopSlWand();
+    combinedOp.addWeight(fbOrigWeight);
+    combinedOp.add(QryEval.parseQuery(query, model));
+    combinedOp.addWeight(1 - fbOrigWeight);
+    combinedOp.add(QryEval.parseQuery(expansionQuery, null));
+    Qryop expandedQTree = new QryopSlAnd(combinedOp);
+    if (optimizer != null) {
+      expandedQTree = optimizer.optimize(expandedQTree, model);
+    }
     QryResult result = expandedQTree.evaluate(model);
 
     return result;
   }
 
   /*
-   * Expand the query using relevance feedback.
+   * Expand the query using relevance feedback. The feedback documents are read from the forward
+   * index if there is one, or else from their term vectors. In the latter case the stems get ids in
+   * the order they are first seen.
    */
   private String expandQuery(Qryop qTree, Map<Integer, Double> indriDocScores) throws IOException {
 
     double colLen = QryEval.READER.getSumTotalTermFreq("body");
+    FbTermWeights termWeights = new FbTermWeights(fbMu, colLen);
 
-    // A map from expansion terms to their weigthts
-    Map<String, Double> expansionTermWeights = new HashMap<String, Double>();
-    // A map from expansion terms to ther ctf's
-    Map<String, Long> ctfMap = new HashMap<String, Long>();
-    // A map from expansion terms to their completed file counts
-    Map<String, Integer> termFileCount = new HashMap<String, Integer>();
-
-    // First pass through the terms to gather all terms
-    for (Entry<Integer, Double> docScoreEntry : indriDocScores.entrySet()) {
-      int docId = docScoreEntry.getKey();
-      TermVector termVector = new TermVector(docId, "body");
-
-      for (int i = 1; i < termVector.stemsLength(); i++) {
-        String stem = termVector.stemString(i);
-        if (!termFileCount.containsKey(stem)) {
-          termFileCount.put(stem, 0);
-          expansionTermWeights.put(stem, 0.0);
-          ctfMap.put(stem, termVector.totalStemFreq(i));
-        }
-      }
-    }
+    Map<String, Integer> stemIds = new HashMap<String, Integer>();
+    List<String> stems = new ArrayList<String>();
+    List<Long> stemCtfs = new ArrayList<Long>();
 
-    // Second pass through all terms, calculate the term weigts
-    int docNum = 0;
     for (Entry<Integer, Double> docScoreEntry : indriDocScores.entrySet()) {
-      docNum++;
       int docId = docScoreEntry.getKey();
-      double p_I_d = docScoreEntry.getValue();
-      double docLen = QryEval.dls.getDocLength("body", docId);
-      TermVector termVector = new TermVector(docId, "body");
-
-      // If term is in a document, add its score to the weights
-      for (int i = 1; i < termVector.stemsLength(); i++) {
-        String stem = termVector.stemString(i);
-
-        double tf = termVector.stemFreq(i);
-        double ctf = ctfMap.get(stem);
-        double p_mle = ctf / colLen;
-        double p_t_d = (tf + fbMu * p_mle) / (docLen + fbMu);
-        double idf = Math.log(colLen / ctf);
-
-        expansionTermWeights.put(stem, expansionTermWeights.get(stem) + p_t_d * p_I_d * idf);
-        termFileCount.put(stem, termFileCount.get(stem) + 1);
-      }
+      termWeights.addDocument(docScoreEntry.getValue(), QryEval.dls.getDocLength("body", docId));
 
-      // If term is not in this document, add its default score to the weights
-      for (Entry<String, Double> termWeightEntry : expansionTermWeights.entrySet()) {
-        String stem = termWeightEntry.getKey();
-        if (termFileCount.get(stem) < docNum) {
-          double ctf = ctfMap.get(stem);
-          double p_mle = ctf / colLen;
-          double p_t_d = ((double) fbMu * p_mle) / (docLen + fbMu);
-          double idf = Math.log(colLen / ctf);
-
-          expansionTermWeights.put(stem, expansionTermWeights.get(stem) + p_t_d * p_I_d * idf);
-          termFileCount.put(stem, termFileCount.get(stem) + 1);
+      if (forwardIndex != null) {
+        ForwardIndex.DocVector vector = forwardIndex.getDocVector(docId);
+        for (int i = 0; i < vector.length(); i++) {
+          int termId = vector.termId(i);
+          termWeights.addTerm(termId, vector.termFreq(i), forwardIndex.getCtf(termId));
+        }
+      } else {
+        // Feedback does not use positions, so the term vector is read without them
+        TermVector termVector = new TermVector(docId, "body", TermVector.Mode.STEMS);
+        for (int i = 1; i < termVector.stemsLength(); i++) {
+          String stem = termVector.stemString(i);
+          Integer stemId = stemIds.get(stem);
+          if (stemId == null) {
+            stemId = stems.size();
+            stemIds.put(stem, stemId);
+            stems.add(stem);
+            stemCtfs.add(termVector.totalStemFreq(i));
+          }
+          termWeights.addTerm(stemId, termVector.stemFreq(i), stemCtfs.get(stemId));
         }
       }
     }
 
-    // Use a max heap to store the scores and get the top fbTerms terms
-    PriorityQueue<Entry<String, Double>> termHeap =
-        new PriorityQueue<Map.Entry<String, Double>>(expansionTermWeights.size(),
-            new Comparator<Entry<String, Double>>() {
-              @Override
-              public int compare(Entry<String, Double> o1, Entry<String, Double> o2) {
-                return o2.getValue().compareTo(o1.getValue());
-              }
-            });
-
-    for (Entry<String, Double> termWeightEntry : expansionTermWeights.entrySet()) {
-      termHeap.add(termWeightEntry);
-    }
-
-    // Build the expansion query string
+    // Build the expansion query string from the fbTerms terms with the highest weights
     StringBuffer queryBuffer = new StringBuffer();
-    for (int i = 0; i < fbTerms; i++) {
-      Entry<String, Double> termHeapEntry = termHeap.remove();
-      queryBuffer.append(termHeapEntry.getValue() + " " + termHeapEntry.getKey() + " ");
+    for (int termId : termWeights.getTopTerms(fbTerms)) {
+      String term = (forwardIndex != null) ? forwardIndex.getTerm(termId) : stems.get(termId);
+      queryBuffer.append(termWeights.getWeight(termId) + " " + term + " ");
     }
 
     return "#WAND( " + queryBuffer.toString() + ')';
@@ -0,0 +1,118 @@
+/**
+ * This class implements a character-level lexer for the query language. It splits a query string
+ * into parentheses, query operators (e.g., #AND, #NEAR/3) and words. Spaces, tabs, newlines and
+ * commas separate tokens and are otherwise ignored. The lexer only records where the current token
+ * starts and ends, so no strings are created unless the parser asks for the token text.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class QryLexer {
+
+  public enum TokenType {
+    LPAREN, RPAREN, OPERATOR, WORD, EOF
+  };
+
+  private String text;
+  private int pos;
+  private TokenType type;
+  private int start;
+  private int end;
+
+  /**
+   * Constructor. The lexer is positioned before the first token.
+   *
+   * @param text The query string.
+   */
+  public QryLexer(String text) {
+    this.text = text;
+    this.pos = 0;
+  }
+
+  /**
+   * Advance to the next token.
+   *
+   * @return The type of the new current token.
+   */
+  public TokenType next() {
+
+    int length = text.length();
+    while (pos < length && isSeparator(text.charAt(pos))) {
+      pos++;
+    }
+
+    start = pos;
+    if (pos >= length) {
+      type = TokenType.EOF;
+    } else if (text.charAt(pos) == '(') {
+      type = TokenType.LPAREN;
+      pos++;
+    } else if (text.charAt(pos) == ')') {
+      type = TokenType.RPAREN;
+      pos++;
+    } else {
+      type = (text.charAt(pos) == '#') ? TokenType.OPERATOR : TokenType.WORD;
+      while (pos < length && !isDelimiter(text.charAt(pos))) {
+        pos++;
+      }
+    }
+    end = pos;
+
+    return type;
+  }
+
+  /**
+   * Get the type of the current token.
+   *
+   * @return The token type.
+   */
+  public TokenType type() {
+    return type;
+  }
+
+  /**
+   * Get the offset of the first character of the current token in the query string.
+   *
+   * @return The start offset.
+   */
+  public int start() {
+    return start;
+  }
+
+  /**
+   * Get the offset just past the last character of the current token in the query string.
+   *
+   * @return The end offset.
+   */
+  public int end() {
+    return end;
+  }
+
+  /**
+   * Get the query string this lexer reads from.
+   *
+   * @return The query string.
+   */
+  public String text() {
+    return text;
+  }
+
+  /**
+   * Get the text of the current token.
+   *
+   * @return The token text.
+   */
+  public String tokenText() {
+    return text.substring(start, end);
+  }
+
+  private static boolean isSeparator(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == ',';
+  }
+
+  private static boolean isDelimiter(char c) {
+    return isSeparator(c) || c == '(' || c == ')';
+  }
+
+}
@@ -0,0 +1,448 @@
+/**
+ * This class implements a rewrite pass that simplifies a parsed query tree before it is evaluated.
+ * The parser wraps every query in a default operator and builds the tree literally, so the tree
+ * often contains single-argument operators, nested operators of the same type and duplicate
+ * arguments. Every rewrite here preserves the document scores of the retrieval model it is applied
+ * under, and each one can be switched off in the parameter file (optimizer:flatten,
+ * optimizer:dedupe, optimizer:unwrap, optimizer:reorder, optimizer:fields) for A/B testing.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+
+public class QryOptimizer {
+
+  // Relative tolerance used when checking whether all weights of an operator are equal
+  private static final double WEIGHT_EPSILON = 1e-12;
+
+  private boolean doFlatten;
+  private boolean doDedupe;
+  private boolean doUnwrap;
+  private boolean doReorder;
+  private boolean doFields;
+
+  /**
+   * Constructor. Each rewrite is enabled unless it is set to false in the parameters.
+   *
+   * @param params Parameters for this query set.
+   */
+  public QryOptimizer(Map<String, String> params) {
+    this.doFlatten = isEnabled(params, "optimizer:flatten");
+    this.doDedupe = isEnabled(params, "optimizer:dedupe");
+    this.doUnwrap = isEnabled(params, "optimizer:unwrap");
+    this.doReorder = isEnabled(params, "optimizer:reorder");
+    this.doFields = isEnabled(params, "optimizer:fields");
+  }
+
+  /**
+   * Create an optimizer if the parameters ask for one.
+   *
+   * @param params Parameters for this query set.
+   * @return The optimizer, or null if optimization is turned off.
+   */
+  public static QryOptimizer create(Map<String, String> params) {
+    if (params.containsKey("optimizer") && params.get("optimizer").equals("true")) {
+      return new QryOptimizer(params);
+    }
+    return null;
+  }
+
+  /**
+   * Rewrite a query tree for the specified retrieval model.
+   *
+   * @param qTree The query tree produced by the parser.
+   * @param r The retrieval model the query will be evaluated with.
+   * @return The rewritten query tree.
+   * @throws IOException
+   */
+  public Qryop optimize(Qryop qTree, RetrievalModel r) throws IOException {
+    if (qTree == null) {
+      return null;
+    }
+    return rewrite(qTree, r, true);
+  }
+
+  /*
+   * Rewrite a query operator after rewriting its arguments.
+   */
+  private Qryop rewrite(Qryop q, RetrievalModel r, boolean isRoot) throws IOException {
+
+    if (q instanceof QryopIlTerm) {
+      return q;
+    }
+
+    for (int i = 0; i < q.args.size(); i++) {
+      q.args.set(i, rewrite(q.args.get(i), r, false));
+    }
+
+    ModelScorer.Family family = r.getScorer().getFamily();
+    if (family == ModelScorer.Family.EXACT_MATCH) {
+      q = rewriteBoolean(q);
+    } else if (family == ModelScorer.Family.SUM) {
+      q = rewriteBM25(q);
+    } else if (family == ModelScorer.Family.LANGUAGE_MODEL) {
+      q = rewriteIndri(q, isRoot);
+    }
+
+    if (doUnwrap) {
+      q = unwrap(q, r, isRoot);
+    }
+
+    return q;
+  }
+
+  /*
+   * AND and OR take the min and max of their arguments under the boolean models, so both are
+   * associative and idempotent. Nested operators of the same type can be flattened, duplicates can
+   * be dropped and AND arguments can be evaluated in any order.
+   */
+  private Qryop rewriteBoolean(Qryop q) throws IOException {
+
+    if (!(q instanceof QryopSlAnd || q instanceof QryopSlOr)) {
+      return q;
+    }
+
+    if (doFlatten) {
+      List<Qryop> flatArgs = new ArrayList<Qryop>();
+      for (Qryop arg : q.args) {
+        if (arg.getClass() == q.getClass()) {
+          flatArgs.addAll(arg.args);
+        } else {
+          flatArgs.add(arg);
+        }
+      }
+      setArgs(q, flatArgs);
+    }
+
+    if (doDedupe) {
+      Map<String, Qryop> uniqueArgs = new LinkedHashMap<String, Qryop>();
+      for (Qryop arg : q.args) {
+        String key = arg.toString();
+        if (!uniqueArgs.containsKey(key)) {
+          uniqueArgs.put(key, arg);
+        }
+      }
+      setArgs(q, new ArrayList<Qryop>(uniqueArgs.values()));
+    }
+
+    if (doReorder && q instanceof QryopSlAnd) {
+      final Map<Qryop, Long> dfs = new HashMap<Qryop, Long>();
+      for (Qryop arg : q.args) {
+        dfs.put(arg, estimateDf(arg));
+      }
+      Collections.sort(q.args, new Comparator<Qryop>() {
+        @Override
+        public int compare(Qryop o1, Qryop o2) {
+          return dfs.get(o1).compareTo(dfs.get(o2));
+        }
+      });
+    }
+
+    return q;
+  }
+
+  /*
+   * SUM adds its arguments under BM25, so nested SUMs can be flattened. A duplicate inverted list
+   * argument contributes its score once per occurrence, so duplicates are folded into one SCORE
+   * operator whose weight is the number of occurrences.
+   */
+  private Qryop rewriteBM25(Qryop q) throws IOException {
+
+    if (!(q instanceof QryopSlSum)) {
+      return q;
+    }
+
+    if (doFlatten) {
+      List<Qryop> flatArgs = new ArrayList<Qryop>();
+      for (Qryop arg : q.args) {
+        if (arg instanceof QryopSlSum) {
+          flatArgs.addAll(arg.args);
+        } else {
+          flatArgs.add(arg);
+        }
+      }
+      setArgs(q, flatArgs);
+    }
+
+    if (doDedupe) {
+      Map<String, Qryop> uniqueArgs = new LinkedHashMap<String, Qryop>();
+      Map<String, Double> argWeights = new HashMap<String, Double>();
+      List<Qryop> otherArgs = new ArrayList<Qryop>();
+      for (Qryop arg : q.args) {
+        Qryop ilArg;
+        double weight;
+        if (arg instanceof QryopIl) {
+          ilArg = arg;
+          weight = 1.0;
+        } else if (arg instanceof QryopSlScore) {
+          ilArg = arg.args.get(0);
+          weight = ((QryopSlScore) arg).getWeight();
+        } else {
+          otherArgs.add(arg);
+          continue;
+        }
+        String key = ilArg.toString();
+        if (uniqueArgs.containsKey(key)) {
+          argWeights.put(key, argWeights.get(key) + weight);
+        } else {
+          uniqueArgs.put(key, ilArg);
+          argWeights.put(key, weight);
+        }
+      }
+
+      List<Qryop> newArgs = new ArrayList<Qryop>();
+      for (Map.Entry<String, Qryop> entry : uniqueArgs.entrySet()) {
+        double weight = argWeights.get(entry.getKey());
+        if (weight == 1.0) {
+          newArgs.add(entry.getValue());
+        } else {
+          QryopSlScore scoreOp = new QryopSlScore(entry.getValue());
+          scoreOp.setWeight(weight);
+          newArgs.add(scoreOp);
+        }
+      }
+      newArgs.addAll(otherArgs);
+      setArgs(q, newArgs);
+    }
+
+    return q;
+  }
+
+  /*
+   * AND, WAND and WSUM are weighted means under Indri, so nested AND and WSUM operators can be
+   * flattened by multiplying the weights through, and duplicates can be folded by adding their
+   * weights. An AND whose weights end up unequal must become a WAND. A nested WAND has a default
+   * score of 0 while a nested AND does not, so that conversion is only done at the root, and a
+   * nested WAND is never flattened into its parent. A WSUM of one term in several fields is the
+   * fielded mixture that FIELDS computes in a single pass.
+   */
+  private Qryop rewriteIndri(Qryop q, boolean isRoot) throws IOException {
+
+    boolean isGeometric = (q instanceof QryopSlAnd || q instanceof QryopSlWand);
+    if (!(isGeometric || q instanceof QryopSlWsum || q instanceof QryopSlFields)) {
+      return q;
+    }
+
+    List<Double> weights = getWeights(q);
+    if (weights == null) {
+      return q;
+    }
+    List<Qryop> newArgs = new ArrayList<Qryop>(q.args);
+    List<Double> newWeights = new ArrayList<Double>(weights);
+
+    if (doFlatten) {
+      List<Qryop> flatArgs = new ArrayList<Qryop>();
+      List<Double> flatWeights = new ArrayList<Double>();
+      for (int i = 0; i < newArgs.size(); i++) {
+        flattenIndri(newArgs.get(i), newWeights.get(i), isGeometric, flatArgs, flatWeights);
+      }
+      newArgs = flatArgs;
+      newWeights = flatWeights;
+    }
+
+    if (doDedupe) {
+      Map<String, Integer> argIndex = new HashMap<String, Integer>();
+      List<Qryop> uniqueArgs = new ArrayList<Qryop>();
+      List<Double> uniqueWeights = new ArrayList<Double>();
+      for (int i = 0; i < newArgs.size(); i++) {
+        String key = newArgs.get(i).toString();
+        if (argIndex.containsKey(key)) {
+          int j = argIndex.get(key);
+          uniqueWeights.set(j, uniqueWeights.get(j) + newWeights.get(i));
+        } else {
+          argIndex.put(key, uniqueArgs.size());
+          uniqueArgs.add(newArgs.get(i));
+          uniqueWeights.add(newWeights.get(i));
+        }
+      }
+      newArgs = uniqueArgs;
+      newWeights = uniqueWeights;
+    }
+
+    if (q instanceof QryopSlWsum || q instanceof QryopSlFields) {
+      if (doFields && isSameTerm(newArgs)) {
+        return buildWeighted(new QryopSlFields(), newArgs, newWeights);
+      }
+      return buildWeighted(new QryopSlWsum(), newArgs, newWeights);
+    } else if (isEqual(newWeights)) {
+      if (q instanceof QryopSlAnd) {
+        setArgs(q, newArgs);
+        return q;
+      }
+      return buildWeighted(new QryopSlWand(), newArgs, newWeights);
+    } else if (q instanceof QryopSlWand || isRoot) {
+      return buildWeighted(new QryopSlWand(), newArgs, newWeights);
+    }
+
+    return q;
+  }
+
+  /*
+   * Append an argument of a weighted mean operator, replacing a nested weighted mean of the same
+   * kind by its own arguments with the weights multiplied through.
+   */
+  private void flattenIndri(Qryop arg, double weight, boolean isGeometric, List<Qryop> flatArgs,
+      List<Double> flatWeights) {
+
+    List<Double> argWeights = getWeights(arg);
+    boolean canFlatten =
+        (isGeometric && arg instanceof QryopSlAnd)
+            || (!isGeometric && (arg instanceof QryopSlWsum || arg instanceof QryopSlFields));
+    if (!canFlatten || argWeights == null) {
+      flatArgs.add(arg);
+      flatWeights.add(weight);
+      return;
+    }
+
+    double argSumW = sum(argWeights);
+    for (int j = 0; j < arg.args.size(); j++) {
+      flattenIndri(arg.args.get(j), weight * argWeights.get(j) / argSumW, isGeometric, flatArgs,
+          flatWeights);
+    }
+  }
+
+  /*
+   * Replace an operator that has a single argument by the argument itself. An inverted list
+   * argument of a score list operator is wrapped in a SCORE operator. A WAND has a default score of
+   * 0 under Indri, so it is only removed at the root.
+   */
+  private Qryop unwrap(Qryop q, RetrievalModel r, boolean isRoot) {
+
+    if (q.args.size() != 1) {
+      return q;
+    }
+
+    boolean isWrapper =
+        q instanceof QryopSlAnd || q instanceof QryopSlOr || q instanceof QryopSlSum
+            || q instanceof QryopSlWsum || q instanceof QryopIlSyn
+            || (q instanceof QryopSlWand && isRoot);
+    if (!isWrapper) {
+      return q;
+    }
+
+    Qryop arg = q.args.get(0);
+    if (q instanceof QryopSl && arg instanceof QryopIl) {
+      return new QryopSlScore(arg);
+    }
+    return arg;
+  }
+
+  /*
+   * Estimate the number of documents that match a query operator from the document frequencies of
+   * its terms.
+   */
+  private long estimateDf(Qryop q) throws IOException {
+
+    if (q instanceof QryopIlTerm) {
+      QryopIlTerm termOp = (QryopIlTerm) q;
+      return QryEval.READER.docFreq(new Term(termOp.getField(), termOp.getTerm()));
+    }
+
+    if (q instanceof QryopSlOr || q instanceof QryopIlSyn || q instanceof QryopSlSum) {
+      long df = 0;
+      for (Qryop arg : q.args) {
+        df += estimateDf(arg);
+      }
+      return Math.min(df, QryEval.READER.numDocs());
+    }
+
+    long df = QryEval.READER.numDocs();
+    for (Qryop arg : q.args) {
+      df = Math.min(df, estimateDf(arg));
+    }
+    return df;
+  }
+
+  /*
+   * Get the argument weights of a weighted mean operator. AND weighs all arguments equally. Returns
+   * null if the operator is not a weighted mean, or if its weights do not line up with its
+   * arguments.
+   */
+  private static List<Double> getWeights(Qryop q) {
+
+    List<Double> weights = null;
+    if (q instanceof QryopSlAnd) {
+      weights = new ArrayList<Double>(Collections.nCopies(q.args.size(), 1.0));
+    } else if (q instanceof QryopSlWand) {
+      weights = ((QryopSlWand) q).weights;
+    } else if (q instanceof QryopSlWsum) {
+      weights = ((QryopSlWsum) q).weights;
+    } else if (q instanceof QryopSlFields) {
+      weights = ((QryopSlFields) q).weights;
+    }
+
+    if (weights == null || weights.size() != q.args.size()) {
+      return null;
+    }
+    return weights;
+  }
+
+  /*
+   * Fill a new weighted operator with arguments and weights.
+   */
+  private static Qryop buildWeighted(Qryop q, List<Qryop> args, List<Double> weights)
+      throws IOException {
+    for (int i = 0; i < args.size(); i++) {
+      q.addWeight(weights.get(i));
+      q.add(args.get(i));
+    }
+    return q;
+  }
+
+  /*
+   * Replace all arguments of a query operator.
+   */
+  private static void setArgs(Qryop q, List<Qryop> args) {
+    q.args.clear();
+    q.args.addAll(args);
+  }
+
+  /*
+   * Whether the arguments are at least two TERM operators of the same term.
+   */
+  private static boolean isSameTerm(List<Qryop> args) {
+    if (args.size() < 2) {
+      return false;
+    }
+    for (Qryop arg : args) {
+      if (!(arg instanceof QryopIlTerm)
+          || !((QryopIlTerm) arg).getTerm().equals(((QryopIlTerm) args.get(0)).getTerm())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static double sum(List<Double> values) {
+    double sum = 0.0;
+    for (Double value : values) {
+      sum += value;
+    }
+    return sum;
+  }
+
+  private static boolean isEqual(List<Double> weights) {
+    for (Double w : weights) {
+      if (Math.abs(w - weights.get(0)) > WEIGHT_EPSILON * Math.abs(weights.get(0))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isEnabled(Map<String, String> params, String key) {
+    return !params.containsKey(key) || params.get(key).equals("true");
+  }
+
+}
@@ -0,0 +1,335 @@
+/**
+ * This class implements a recursive-descent parser that converts a query string into a query tree.
+ * It reads tokens from a QryLexer, so each character of the query is looked at once. The parsed
+ * form of a query, with its terms already processed by the analyzer, is kept in a bounded cache
+ * keyed by the raw query text. Every call builds a fresh query tree from it, because query
+ * operators keep evaluation state.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class QryParser {
+
+  // Query operator types, with the name used in the query language.
+  public enum OpType {
+    AND("#and", false, false), OR("#or", false, false), SYN("#syn", false, false), SUM("#sum",
+        false, false), WAND("#wand", true, false), WSUM("#wsum", true, false), FIELDS("#fields",
+        true, false), NEAR("#near", false, true), WINDOW("#window", false, true), TERM(null, false,
+        false);
+
+    private String name;
+    private boolean weighted;
+    private boolean hasDistance;
+
+    private OpType(String name, boolean weighted, boolean hasDistance) {
+      this.name = name;
+      this.weighted = weighted;
+      this.hasDistance = hasDistance;
+    }
+  };
+
+  // Fields that a term may be restricted to, e.g., apple.title.
+  private static final String[] FIELDS = {"url", "keywords", "title", "body", "inlink"};
+
+  // A parsed query operator, independent of the Qryop objects built from it.
+  private static class Node {
+    private OpType type;
+    private int distance;
+    private String term;
+    private String field;
+    private double weight;
+    private List<Node> children = new ArrayList<Node>();
+
+    private Node(OpType type) {
+      this.type = type;
+    }
+  }
+
+  private Map<String, Node> cache;
+
+  /**
+   * Constructor.
+   *
+   * @param cacheSize The maximum number of parsed queries to keep.
+   */
+  public QryParser(int cacheSize) {
+    this.cache = Collections.synchronizedMap(new LruCache<String, Node>(cacheSize));
+  }
+
+  /**
+   * Parse a query string into a query tree.
+   *
+   * @param qString A string containing a query.
+   * @param defaultOp The operator to wrap the query in, or null if the query string is a single
+   *        query operator.
+   * @return The query tree.
+   * @throws IOException
+   * @throws QrySyntaxException
+   */
+  public Qryop parse(String qString, OpType defaultOp) throws IOException, QrySyntaxException {
+
+    String key = (defaultOp == null) ? qString : defaultOp.name + " " + qString;
+    Node root = cache.get(key);
+    if (root == null) {
+      root = parseTree(qString, defaultOp);
+      cache.put(key, root);
+    }
+
+    return build(root);
+  }
+
+  /*
+   * Parse a query string into a tree of nodes.
+   */
+  private Node parseTree(String qString, OpType defaultOp) throws IOException,
+      QrySyntaxException {
+
+    QryLexer lexer = new QryLexer(qString);
+    lexer.next();
+
+    if (defaultOp != null) {
+      Node root = new Node(defaultOp);
+      parseArgs(lexer, root, true);
+      return root;
+    }
+
+    if (lexer.type() != QryLexer.TokenType.OPERATOR) {
+      throw error(lexer, "Expected a query operator");
+    }
+    Node root = parseArg(lexer);
+    if (lexer.type() != QryLexer.TokenType.EOF) {
+      throw error(lexer, "Unexpected text after the query");
+    }
+    if (root == null) {
+      throw error(lexer, "Query has no terms");
+    }
+    return root;
+  }
+
+  /*
+   * Parse the arguments of a query operator up to its closing parenthesis, or up to the end of the
+   * query for the default operator.
+   */
+  private void parseArgs(QryLexer lexer, Node node, boolean isDefault) throws IOException,
+      QrySyntaxException {
+
+    int opStart = lexer.start();
+
+    while (true) {
+      QryLexer.TokenType type = lexer.type();
+      if (type == QryLexer.TokenType.RPAREN) {
+        if (isDefault) {
+          throw error(lexer, "Unbalanced ')'");
+        }
+        lexer.next();
+        return;
+      } else if (type == QryLexer.TokenType.EOF) {
+        if (isDefault) {
+          return;
+        }
+        throw new QrySyntaxException("Missing ')'", lexer.text(), opStart);
+      }
+
+      // Weighted operators expect a weight before each argument.
+      double weight = 1.0;
+      if (node.type.weighted) {
+        weight = parseWeight(lexer);
+        type = lexer.next();
+        if (type == QryLexer.TokenType.RPAREN || type == QryLexer.TokenType.EOF) {
+          throw error(lexer, "Missing argument after weight");
+        }
+      }
+
+      // Stopwords and operators without arguments are dropped along with their weights.
+      int argStart = lexer.start();
+      Node arg = parseArg(lexer);
+      if (arg != null && node.type == OpType.FIELDS && arg.type != OpType.TERM) {
+        throw new QrySyntaxException("#FIELDS arguments must be terms", lexer.text(), argStart);
+      }
+      if (arg != null) {
+        arg.weight = weight;
+        node.children.add(arg);
+      }
+    }
+  }
+
+  /*
+   * Parse one query argument, either a query operator or a term. Returns null if the argument has
+   * nothing to match, e.g., it is a stopword.
+   */
+  private Node parseArg(QryLexer lexer) throws IOException, QrySyntaxException {
+
+    if (lexer.type() == QryLexer.TokenType.WORD) {
+      Node node = parseTerm(lexer);
+      lexer.next();
+      return node;
+    } else if (lexer.type() != QryLexer.TokenType.OPERATOR) {
+      throw error(lexer, "Unexpected '" + lexer.tokenText() + "'");
+    }
+
+    Node node = parseOperatorName(lexer);
+    if (lexer.next() != QryLexer.TokenType.LPAREN) {
+      throw error(lexer, "Expected '('");
+    }
+    lexer.next();
+    parseArgs(lexer, node, false);
+
+    return node.children.isEmpty() ? null : node;
+  }
+
+  /*
+   * Resolve the operator name (and distance, for #NEAR/n and #WINDOW/n) of the current token.
+   */
+  private Node parseOperatorName(QryLexer lexer) throws QrySyntaxException {
+
+    String text = lexer.text();
+    int start = lexer.start();
+    int end = lexer.end();
+    int slash = text.indexOf('/', start);
+    int nameEnd = (slash >= 0 && slash < end) ? slash : end;
+
+    for (OpType type : OpType.values()) {
+      if (type.name == null || type.name.length() != nameEnd - start
+          || !text.regionMatches(true, start, type.name, 0, type.name.length())) {
+        continue;
+      }
+
+      Node node = new Node(type);
+      if (type.hasDistance != (nameEnd < end)) {
+        throw error(lexer, type.hasDistance ? "Missing distance" : "Unexpected distance");
+      }
+      if (type.hasDistance) {
+        if (nameEnd + 1 == end) {
+          throw error(lexer, "Missing distance");
+        }
+        for (int i = nameEnd + 1; i < end; i++) {
+          char c = text.charAt(i);
+          if (c < '0' || c > '9' || node.distance > (Integer.MAX_VALUE - 9) / 10) {
+            throw new QrySyntaxException("Invalid distance", text, i);
+          }
+          node.distance = node.distance * 10 + (c - '0');
+        }
+      }
+      return node;
+    }
+
+    throw error(lexer, "Unknown query operator '" + lexer.tokenText() + "'");
+  }
+
+  /*
+   * Parse a term, and check to see whether the term specifies a particular field (e.g.,
+   * apple.title). Returns null if the term is a stopword.
+   */
+  private Node parseTerm(QryLexer lexer) throws IOException, QrySyntaxException {
+
+    String text = lexer.text();
+    int start = lexer.start();
+    int end = lexer.end();
+
+    String field = "body";
+    int termEnd = end;
+    int dot = -1;
+    int dots = 0;
+    for (int i = start; i < end; i++) {
+      if (text.charAt(i) == '.') {
+        dot = i;
+        dots++;
+      }
+    }
+    if (dots == 1 && dot < end - 1) {
+      for (String f : FIELDS) {
+        if (f.length() == end - dot - 1 && text.regionMatches(true, dot + 1, f, 0, f.length())) {
+          field = f;
+          termEnd = dot;
+          break;
+        }
+      }
+    }
+
+    String[] processedToken = QryEval.tokenizeQuery(text.substring(start, termEnd));
+    if (processedToken.length > 1) {
+      throw error(lexer, "Invalid query term");
+    } else if (processedToken.length == 0) {
+      return null;
+    }
+
+    Node node = new Node(OpType.TERM);
+    node.term = processedToken[0];
+    node.field = field;
+    return node;
+  }
+
+  /*
+   * Parse the weight at the current token.
+   */
+  private double parseWeight(QryLexer lexer) throws QrySyntaxException {
+    if (lexer.type() == QryLexer.TokenType.WORD) {
+      try {
+        return Double.parseDouble(lexer.tokenText());
+      } catch (NumberFormatException e) {
+        // Fall through to the error below.
+      }
+    }
+    throw error(lexer, "Expected a weight");
+  }
+
+  /*
+   * Build a query tree from a parsed node.
+   */
+  private static Qryop build(Node node) throws IOException {
+
+    Qryop op;
+    switch (node.type) {
+      case TERM:
+        return new QryopIlTerm(node.term, node.field);
+      case AND:
+        op = new QryopSlAnd();
+        break;
+      case OR:
+        op = new QryopSlOr();
+        break;
+      case SYN:
+        op = new QryopIlSyn();
+        break;
+      case SUM:
+        op = new QryopSlSum();
+        break;
+      case WAND:
+        op = new QryopSlWand();
+        break;
+      case WSUM:
+        op = new QryopSlWsum();
+        break;
+      case FIELDS:
+        op = new QryopSlFields();
+        break;
+      case NEAR:
+        op = new QryopIlNear(node.distance);
+        break;
+      default:
+        op = new QryopIlWindow(node.distance);
+        break;
+    }
+
+    for (Node child : node.children) {
+      if (node.type.weighted) {
+        op.addWeight(child.weight);
+      }
+      op.add(build(child));
+    }
+
+    return op;
+  }
+
+  private static QrySyntaxException error(QryLexer lexer, String message) {
+    return new QrySyntaxException(message, lexer.text(), lexer.start());
+  }
+
+}
@@ -0,0 +1,322 @@
+/**
+ * QryPipeline runs a query file through four stages that overlap: reading and parsing the queries,
+ * evaluating them, ranking the documents and resolving their external ids, and writing the results
+ * in query order. The stages are connected by bounded queues, and each stage runs with its own
+ * number of threads, so I/O and CPU work overlap and the slow stage can be given more threads.
+ *
+ * Each stage counts the queries it handles and the time its threads spend working, waiting for
+ * input (starved) and waiting for room in the next queue (blocked), and samples how full its input
+ * queue is. The first stage has no input queue and reads the query file itself, so its reading
+ * counts as work. The report printed at the end of a run shows which stage is the bottleneck: it is
+ * busy while the stages after it are starved and the stages before it are blocked.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class QryPipeline {
+
+  /**
+   * Evaluates a parsed query. It is called from several threads at once.
+   */
+  public interface Evaluator {
+    QryResult evaluate(Qryop qTree, String queryId, String query) throws Exception;
+  }
+
+  // One query on its way through the stages.
+  private static class Task {
+    private long seq;
+    private String queryId;
+    private String query;
+    private Qryop qTree;
+    private QryResult result;
+    private QryResultWriter.Rows rows;
+  }
+
+  // Marks the end of a queue.
+  private static final Task END = new Task();
+
+  /*
+   * A stage of the pipeline. Its threads take tasks from the input queue, process them and put
+   * them on the output queue. When a thread sees the end marker, it puts it back for the other
+   * threads of the stage, and the last thread to stop passes it on to the next stage.
+   */
+  private abstract class Stage implements Runnable {
+
+    private String name;
+    private int numThreads;
+    private BlockingQueue<Task> in;
+    private BlockingQueue<Task> out;
+    private AtomicInteger running;
+
+    private AtomicLong items = new AtomicLong();
+    private AtomicLong busyNanos = new AtomicLong();
+    private AtomicLong starvedNanos = new AtomicLong();
+    private AtomicLong blockedNanos = new AtomicLong();
+    private AtomicLong occupancy = new AtomicLong();
+
+    private Stage(String name, int numThreads, BlockingQueue<Task> in, BlockingQueue<Task> out) {
+      this.name = name;
+      this.numThreads = numThreads;
+      this.in = in;
+      this.out = out;
+      this.running = new AtomicInteger(numThreads);
+    }
+
+    /*
+     * Get the next task, or END. A stage without an input queue makes its own tasks.
+     */
+    Task take() throws Exception {
+      occupancy.addAndGet(in.size());
+      return in.take();
+    }
+
+    /*
+     * Do the work of this stage on a task.
+     */
+    abstract void process(Task task) throws Exception;
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          long start = System.nanoTime();
+          Task task = take();
+          long taken = System.nanoTime();
+          if (in != null) {
+            starvedNanos.addAndGet(taken - start);
+          } else {
+            busyNanos.addAndGet(taken - start);
+          }
+          if (task == END) {
+            if (in != null) {
+              in.put(END);
+            }
+            break;
+          }
+
+          if (error == null) {
+            process(task);
+          }
+          long processed = System.nanoTime();
+          busyNanos.addAndGet(processed - taken);
+          items.incrementAndGet();
+
+          if (out != null) {
+            out.put(task);
+            blockedNanos.addAndGet(System.nanoTime() - processed);
+          }
+        }
+      } catch (Exception e) {
+        fail(e);
+        if (in != null) {
+          drain(in);
+        }
+      } finally {
+        if (running.decrementAndGet() == 0 && out != null) {
+          try {
+            out.put(END);
+          } catch (InterruptedException e) {
+            fail(e);
+          }
+        }
+      }
+    }
+
+    /*
+     * Take the rest of the input after an error, so that the stage before does not block forever.
+     */
+    private void drain(BlockingQueue<Task> queue) {
+      try {
+        while (queue.take() != END) {
+          // Drop the task.
+        }
+        queue.put(END);
+      } catch (InterruptedException e) {
+        // The run is failing anyway.
+      }
+    }
+  }
+
+  private File queryFile;
+  private RetrievalModel model;
+  private QryOptimizer optimizer;
+  private Evaluator evaluator;
+  private QryResultWriter writer;
+  private int evalThreads;
+  private int formatThreads;
+  private int queueSize;
+
+  private volatile Exception error;
+
+  /**
+   * Constructor.
+   *
+   * @param queryFile The query file, with one query per line as queryId:query.
+   * @param model The retrieval model the queries are parsed for.
+   * @param optimizer The query optimizer, or null.
+   * @param evaluator Evaluates the parsed queries.
+   * @param writer The result writer.
+   * @param evalThreads The number of threads that evaluate queries.
+   * @param formatThreads The number of threads that rank documents and resolve external ids.
+   * @param queueSize The capacity of each queue between stages.
+   */
+  public QryPipeline(File queryFile, RetrievalModel model, QryOptimizer optimizer,
+      Evaluator evaluator, QryResultWriter writer, int evalThreads, int formatThreads,
+      int queueSize) {
+    this.queryFile = queryFile;
+    this.model = model;
+    this.optimizer = optimizer;
+    this.evaluator = evaluator;
+    this.writer = writer;
+    this.evalThreads = evalThreads;
+    this.formatThreads = formatThreads;
+    this.queueSize = queueSize;
+  }
+
+  /**
+   * Run all queries of the query file, wait for the results to be handed to the writer, and print
+   * the stage report.
+   *
+   * @throws Exception The first error of any stage.
+   */
+  public void run() throws Exception {
+
+    BlockingQueue<Task> parsed = new ArrayBlockingQueue<Task>(queueSize);
+    BlockingQueue<Task> evaluated = new ArrayBlockingQueue<Task>(queueSize);
+    BlockingQueue<Task> formatted = new ArrayBlockingQueue<Task>(queueSize);
+    final BufferedReader queryReader = new BufferedReader(new FileReader(queryFile));
+
+    Stage[] stages = new Stage[4];
+
+    stages[0] = new Stage("read+parse", 1, null, parsed) {
+      private long seq = 0;
+
+      @Override
+      Task take() throws Exception {
+        String qLine = (error == null) ? queryReader.readLine() : null;
+        if (qLine == null) {
+          return END;
+        }
+        Task task = new Task();
+        task.seq = seq++;
+        task.queryId = qLine.substring(0, qLine.indexOf(':'));
+        task.query = qLine.substring(qLine.indexOf(':') + 1);
+        return task;
+      }
+
+      @Override
+      void process(Task task) throws Exception {
+        try {
+          task.qTree = QryEval.parseQuery(task.query, model);
+        } catch (QrySyntaxException e) {
+          System.err.println("Error: Query " + task.queryId + ": " + e.getMessage());
+          task.result = new QryResult();
+          return;
+        }
+        if (optimizer != null) {
+          task.qTree = optimizer.optimize(task.qTree, model);
+        }
+      }
+    };
+
+    stages[1] = new Stage("evaluate", evalThreads, parsed, evaluated) {
+      @Override
+      void process(Task task) throws Exception {
+        if (task.result == null) {
+          task.result = evaluator.evaluate(task.qTree, task.queryId, task.query);
+        }
+        task.qTree = null;
+      }
+    };
+
+    stages[2] = new Stage("rank+extid", formatThreads, evaluated, formatted) {
+      @Override
+      void process(Task task) throws Exception {
+        task.rows = writer.rank(task.queryId, task.result);
+        task.result = null;
+      }
+    };
+
+    // The results arrive out of order, so they are held until all earlier queries are written.
+    stages[3] = new Stage("write", 1, formatted, null) {
+      private Map<Long, Task> pending = new HashMap<Long, Task>();
+      private long nextSeq = 0;
+
+      @Override
+      void process(Task task) throws Exception {
+        pending.put(task.seq, task);
+        while (pending.containsKey(nextSeq)) {
+          writer.write(pending.remove(nextSeq).rows);
+          nextSeq++;
+        }
+      }
+    };
+
+    long startTime = System.nanoTime();
+    Thread[][] threads = new Thread[stages.length][];
+    for (int s = 0; s < stages.length; s++) {
+      threads[s] = new Thread[stages[s].numThreads];
+      for (int t = 0; t < threads[s].length; t++) {
+        threads[s][t] = new Thread(stages[s], "QryPipeline-" + stages[s].name + "-" + t);
+        threads[s][t].start();
+      }
+    }
+    for (Thread[] stageThreads : threads) {
+      for (Thread thread : stageThreads) {
+        thread.join();
+      }
+    }
+    long elapsed = System.nanoTime() - startTime;
+    queryReader.close();
+
+    if (error != null) {
+      throw error;
+    }
+    printReport(stages, elapsed);
+  }
+
+  /*
+   * Record the first error. The stages stop processing, and the reader stops reading.
+   */
+  private synchronized void fail(Exception e) {
+    if (error == null) {
+      error = e;
+    }
+  }
+
+  /*
+   * Print, for each stage, the share of its threads' time spent working, starved and blocked, and
+   * the mean number of tasks waiting in its input queue.
+   */
+  private void printReport(Stage[] stages, long elapsed) {
+
+    System.out.println(String.format("%-12s %7s %7s %6s %8s %8s %10s", "Stage", "Threads",
+        "Queries", "Busy", "Starved", "Blocked", "Queue"));
+    for (Stage stage : stages) {
+      double threadNanos = (double) elapsed * stage.numThreads;
+      String queue = "-";
+      if (stage.in != null && stage.items.get() > 0) {
+        queue =
+            String.format("%.1f/%d", (double) stage.occupancy.get() / stage.items.get(),
+                queueSize);
+      }
+      System.out.println(String.format("%-12s %7d %7d %5.1f%% %7.1f%% %7.1f%% %10s", stage.name,
+          stage.numThreads, stage.items.get(), 100 * stage.busyNanos.get() / threadNanos,
+          100 * stage.starvedNanos.get() / threadNanos, 100 * stage.blockedNanos.get()
+              / threadNanos, queue));
+    }
+  }
+
+}
@@ -0,0 +1,377 @@
+/**
+ * This class writes query results to a file, either in trec_eval format or as JSON lines (one JSON
+ * object per query). The caller ranks the documents and resolves their external ids, either with
+ * write, or with rank from any number of threads followed by write in query order. A background
+ * thread formats the rows into a reusable byte buffer and writes them through a FileChannel, so
+ * formatting and file I/O overlap with query evaluation. A bounded queue between the two keeps the
+ * writer from falling too far behind.
+ *
+ * Numbers are formatted by hand instead of with String.format. Scores are written with six decimal
+ * places exactly as %f writes them: a score that lies within rounding error of a half-way point,
+ * where the fast rounding could differ from %f, is formatted with %f instead.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class QryResultWriter {
+
+  public enum Format {
+    TREC, JSONL
+  };
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final int QUEUE_SIZE = 256;
+  private static final String RUN_ID = "zexim";
+
+  /**
+   * The ranked results of one query, handed from the caller to the writer thread.
+   */
+  public static class Rows {
+    private String queryId;
+    private String[] externalIds;
+    private double[] scores;
+    private int size;
+  }
+
+  // Marks the end of the queue.
+  private static final Rows END = new Rows();
+
+  private Format format;
+  private int maxResult;
+  private FileChannel channel;
+  private ByteBuffer buffer;
+  private BlockingQueue<Rows> queue;
+  private Thread writerThread;
+  private volatile IOException error;
+
+  /**
+   * Constructor. Creates (or truncates) the output file and starts the writer thread.
+   *
+   * @param file The output file.
+   * @param format The output format.
+   * @param maxResult The maximum number of documents to write for each query.
+   * @throws IOException
+   */
+  public QryResultWriter(File file, Format format, int maxResult) throws IOException {
+
+    this.format = format;
+    this.maxResult = maxResult;
+    this.channel = new FileOutputStream(file).getChannel();
+    this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    this.queue = new ArrayBlockingQueue<Rows>(QUEUE_SIZE);
+
+    this.writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "QryResultWriter");
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /**
+   * Rank the documents of a query result and queue the top ones for writing. Blocks if the writer
+   * thread is too far behind.
+   *
+   * @param queryId ID of the query.
+   * @param result Result of the query.
+   * @throws IOException
+   */
+  public void write(String queryId, QryResult result) throws IOException {
+    write(rank(queryId, result));
+  }
+
+  /**
+   * Rank the documents of a query result and resolve the external ids of the top ones. This does
+   * not touch the output, so it may be called by several threads at once.
+   *
+   * @param queryId ID of the query.
+   * @param result Result of the query.
+   * @return The rows to write.
+   * @throws IOException
+   */
+  public Rows rank(String queryId, QryResult result) throws IOException {
+
+    Rows rows = new Rows();
+    rows.queryId = queryId;
+    DocScore docScore = new DocScore(result, maxResult);
+    rows.size = docScore.scores.size();
+    rows.externalIds = new String[rows.size];
+    rows.scores = new double[rows.size];
+    for (int i = 0; i < rows.size; i++) {
+      rows.externalIds[i] = docScore.getExternalDocid(i);
+      rows.scores[i] = docScore.getDocidScore(i);
+    }
+
+    return rows;
+  }
+
+  /**
+   * Queue ranked rows for writing. Blocks if the writer thread is too far behind.
+   *
+   * @param rows The rows of one query, from rank.
+   * @throws IOException
+   */
+  public void write(Rows rows) throws IOException {
+    checkError();
+    put(rows);
+  }
+
+  /**
+   * Write all queued results and close the file.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+
+    put(END);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while closing the result file", e);
+    }
+    channel.close();
+    checkError();
+  }
+
+  /*
+   * Queue results for the writer thread. Results are not queued after an I/O error, but the end
+   * marker always is, so that the writer thread stops.
+   */
+  private void put(Rows rows) throws IOException {
+    try {
+      while (!queue.offer(rows, 100, TimeUnit.MILLISECONDS)) {
+        if (rows != END) {
+          checkError();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing results", e);
+    }
+  }
+
+  private void checkError() throws IOException {
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /*
+   * The body of the writer thread. Runs until the end marker. After the first I/O error, which is
+   * reported to the caller by the next call to write or close, it keeps taking results from the
+   * queue without formatting them, so that callers never block on a full queue.
+   */
+  private void writeLoop() {
+    while (true) {
+      Rows rows;
+      try {
+        rows = queue.take();
+      } catch (InterruptedException e) {
+        error = new IOException("Result writer was interrupted", e);
+        return;
+      }
+      if (rows == END) {
+        break;
+      }
+      if (error == null) {
+        try {
+          if (format == Format.JSONL) {
+            formatJson(rows);
+          } else {
+            formatTrec(rows);
+          }
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+    }
+    if (error == null) {
+      try {
+        flush();
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+  }
+
+  /*
+   * Format one query in trec_eval format. A query without results gets a dummy row, so that
+   * trec_eval still sees the query.
+   */
+  private void formatTrec(Rows rows) throws IOException {
+
+    if (rows.size == 0) {
+      putString(rows.queryId);
+      putString(" Q0 dummy 1 0 ");
+      putString(RUN_ID);
+      putByte('\n');
+      return;
+    }
+
+    for (int i = 0; i < rows.size; i++) {
+      putString(rows.queryId);
+      putString(" Q0 ");
+      putString(rows.externalIds[i]);
+      putByte(' ');
+      putLong(i + 1);
+      putByte(' ');
+      putFixed(rows.scores[i]);
+      putByte(' ');
+      putString(RUN_ID);
+      putByte('\n');
+    }
+  }
+
+  /*
+   * Format one query as a JSON object on a single line.
+   */
+  private void formatJson(Rows rows) throws IOException {
+
+    putString("{\"query\":");
+    putJsonString(rows.queryId);
+    putString(",\"run\":");
+    putJsonString(RUN_ID);
+    putString(",\"docs\":[");
+    for (int i = 0; i < rows.size; i++) {
+      if (i > 0) {
+        putByte(',');
+      }
+      putString("{\"docid\":");
+      putJsonString(rows.externalIds[i]);
+      putString(",\"rank\":");
+      putLong(i + 1);
+      putString(",\"score\":");
+      putFixed(rows.scores[i]);
+      putByte('}');
+    }
+    putString("]}\n");
+  }
+
+  /*
+   * Append a number with six decimal places, as %f does. %f rounds the shortest decimal form of the
+   * number half up. Below 1e6 that form and the product value * 1e6 are both within 2e-4 of the
+   * exact scaled value, so Math.round gives the same digits unless the fraction is that close to
+   * one half. Those numbers, and large ones, are formatted with %f.
+   */
+  private void putFixed(double value) throws IOException {
+
+    double scaledValue = Math.abs(value) * 1e6;
+    double fraction = scaledValue - Math.floor(scaledValue);
+    if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= 1e6
+        || Math.abs(fraction - 0.5) < 1e-3) {
+      putString(String.format("%f", value));
+      return;
+    }
+
+    if (value < 0.0 || (value == 0.0 && 1.0 / value < 0.0)) {
+      putByte('-');
+      value = -value;
+    }
+
+    long scaled = Math.round(scaledValue);
+    putLong(scaled / 1000000);
+    putByte('.');
+    int decimals = (int) (scaled % 1000000);
+    for (int divisor = 100000; divisor > 0; divisor /= 10) {
+      putByte('0' + (decimals / divisor) % 10);
+    }
+  }
+
+  /*
+   * Append a non-negative integer.
+   */
+  private void putLong(long value) throws IOException {
+    long divisor = 1;
+    while (divisor <= value / 10) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      putByte((int) ('0' + (value / divisor) % 10));
+    }
+  }
+
+  /*
+   * Append a string as a JSON string literal.
+   */
+  private void putJsonString(String s) throws IOException {
+    putByte('"');
+    for (int i = 0; i < s.length(); i = s.offsetByCodePoints(i, 1)) {
+      int c = s.codePointAt(i);
+      if (c == '"' || c == '\\') {
+        putByte('\\');
+        putByte(c);
+      } else if (c < 0x20) {
+        putString("\\u00");
+        putByte(Character.forDigit(c >> 4, 16));
+        putByte(Character.forDigit(c & 0xf, 16));
+      } else {
+        putCodePoint(c);
+      }
+    }
+    putByte('"');
+  }
+
+  /*
+   * Append a string. Characters outside of ASCII are encoded as UTF-8.
+   */
+  private void putString(String s) throws IOException {
+    for (int i = 0; i < s.length(); i = s.offsetByCodePoints(i, 1)) {
+      putCodePoint(s.codePointAt(i));
+    }
+  }
+
+  /*
+   * Append a code point in UTF-8. A lone surrogate is written as '?', as String.getBytes does.
+   */
+  private void putCodePoint(int c) throws IOException {
+    if (c < 0x80) {
+      putByte(c);
+    } else if (c < 0x800) {
+      putByte(0xc0 | (c >> 6));
+      putByte(0x80 | (c & 0x3f));
+    } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+      putByte('?');
+    } else if (c < 0x10000) {
+      putByte(0xe0 | (c >> 12));
+      putByte(0x80 | ((c >> 6) & 0x3f));
+      putByte(0x80 | (c & 0x3f));
+    } else {
+      putByte(0xf0 | (c >> 18));
+      putByte(0x80 | ((c >> 12) & 0x3f));
+      putByte(0x80 | ((c >> 6) & 0x3f));
+      putByte(0x80 | (c & 0x3f));
+    }
+  }
+
+  private void putByte(int b) throws IOException {
+    if (!buffer.hasRemaining()) {
+      flush();
+    }
+    buffer.put((byte) b);
+  }
+
+  /*
+   * Write the buffered bytes to the file.
+   */
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+}
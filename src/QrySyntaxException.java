@@ -0,0 +1,36 @@
+/**
+ * This exception is thrown when a query string cannot be parsed. It records the character offset in
+ * the query string where the problem was found.
+ *
+ * @author KyleMao
+ *
+ */
+
+public class QrySyntaxException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  private int position;
+
+  /**
+   * Constructor.
+   *
+   * @param message Description of the syntax error.
+   * @param query The query string that failed to parse.
+   * @param position Offset of the error in the query string.
+   */
+  public QrySyntaxException(String message, String query, int position) {
+    super(message + " at position " + position + ": " + query);
+    this.position = position;
+  }
+
+  /**
+   * Get the offset of the error in the query string.
+   *
+   * @return The character offset.
+   */
+  public int getPosition() {
+    return position;
+  }
+
+}
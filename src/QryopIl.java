@@ -32,4 +32,41 @@ public abstract class QryopIl extends Qryop {
     }
   }
 
+  /**
+   * Find the first element of a sorted array, at or after an index, that is greater than a value.
+   * The search gallops (1, 2, 4, ... elements ahead) and then searches the last step binarily, so
+   * short skips cost little and long skips cost logarithmic time.
+   * 
+   * @param positions A sorted array of positions.
+   * @param from The index to start from.
+   * @param value The value to skip past.
+   * @return The index of the first element after from that is greater than value, or
+   *         positions.length if there is none.
+   */
+  protected static int gallop(int[] positions, int from, int value) {
+
+    if (from >= positions.length || positions[from] > value)
+      return from;
+
+    // positions[low] <= value < positions[high], with positions[length] taken as infinity.
+    int low = from;
+    int step = 1;
+    int high = from + step;
+    while (high < positions.length && positions[high] <= value) {
+      low = high;
+      step <<= 1;
+      high = low + step;
+    }
+    high = Math.min(high, positions.length);
+
+    while (high - low > 1) {
+      int mid = (low + high) >>> 1;
+      if (positions[mid] <= value)
+        low = mid;
+      else
+        high = mid;
+    }
+    return high;
+  }
+
 }
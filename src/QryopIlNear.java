@@ -6,16 +6,16 @@
  */
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Vector;
+import java.util.Arrays;
 
 public class QryopIlNear extends QryopIl {
 
   // Max term distance of two candidate terms
   private int distance;
 
+  // The match locations found in the current document, reused for all documents.
+  private int[] locations = new int[16];
+
   /**
    * Constructor. Create a NEAR operator with a specific distance.
    * 
@@ -61,6 +61,23 @@ public class QryopIlNear extends QryopIl {
   @Override
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
+    // A pair of terms may have a precomputed list
+    if (QryEval.bigramIndex != null && this.args.size() == 2
+        && this.args.get(0) instanceof QryopIlTerm && this.args.get(1) instanceof QryopIlTerm) {
+      QryopIlTerm term1 = (QryopIlTerm) this.args.get(0);
+      QryopIlTerm term2 = (QryopIlTerm) this.args.get(1);
+      if (term1.getField().equals(term2.getField())) {
+        InvList invList =
+            QryEval.bigramIndex.getInvList(term1.getField(), term1.getTerm(), term2.getTerm(),
+                distance);
+        if (invList != null) {
+          QryResult result = new QryResult();
+          result.invertedList = invList;
+          return result;
+        }
+      }
+    }
+
     // Initialization
     allocArgPtrs(r);
     QryResult result = new QryResult();
@@ -69,6 +86,12 @@ public class QryopIlNear extends QryopIl {
     // document id. Use the first list to control the search for matches.
     ArgPtr ptr0 = this.argPtrs.get(0);
 
+    // The position arrays of the current document and a cursor into each are reused for all
+    // documents.
+    int numArgs = this.argPtrs.size();
+    int[][] positions = new int[numArgs][];
+    int[] cursors = new int[numArgs];
+
     EVALUATEDOCUMENTS: for (; ptr0.nextDoc < ptr0.invList.df; ptr0.nextDoc++) {
       int ptr0Docid = ptr0.invList.getDocid(ptr0.nextDoc);
 
@@ -90,53 +113,13 @@ public class QryopIlNear extends QryopIl {
       }
 
       // Already satisfies AND condition, check for NEAR condition
-      List<Integer> locations = new ArrayList<Integer>();
-      List<Integer> allPos = new ArrayList<Integer>(Collections.nCopies(this.args.size(), 0));
-      EVALUATELOCATIONS: while (true) {
-
-        // Check whether any of the position lists is exhausted
-        for (int j = 0; j < allPos.size(); j++) {
-          ArgPtr ptrj = this.argPtrs.get(j);
-          if (allPos.get(j) >= getPositions(ptrj).size()) {
-            break EVALUATELOCATIONS;
-          }
-        }
-
-        for (int j = 1; j < allPos.size(); j++) {
-
-          // Get the positions under evaluation in the i'th and j'th query term
-          ArgPtr ptri = this.argPtrs.get(j - 1);
-          ArgPtr ptrj = this.argPtrs.get(j);
-          int iPos = getPositions(ptri).get(allPos.get(j - 1));
-          int jPos = getPositions(ptrj).get(allPos.get(j));
-
-          if (jPos - iPos <= 0) { // Not yet the right position.
-            incListElem(allPos, j);
-            if (allPos.get(j) >= getPositions(ptrj).size()) {
-              break EVALUATELOCATIONS;
-            }
-            j--; // Backtrack
-          } else if (jPos - iPos <= distance) { // Good so far.
-            continue;
-          } else { // Cannot match, use greedy algorithm.
-            incListElem(allPos, 0);
-            if (allPos.get(0) >= getPositions(ptr0).size()) {
-              break EVALUATELOCATIONS;
-            }
-            continue EVALUATELOCATIONS;
-          }
-        }
-
-        // Add the location of the last term to locations
-        ArgPtr ptr = this.argPtrs.get(allPos.size() - 1);
-        locations.add(getPositions(ptr).get(allPos.get(allPos.size() - 1)));
-        for (int i = 0; i < allPos.size(); i++) {
-          incListElem(allPos, i);
-        }
+      for (int j = 0; j < numArgs; j++) {
+        positions[j] = this.argPtrs.get(j).invList.getPositions(this.argPtrs.get(j).nextDoc);
       }
+      int numLocations = matchLocations(positions, cursors);
 
-      if (!locations.isEmpty()) {
-        result.invertedList.appendPosting(ptr0Docid, locations);
+      if (numLocations > 0) {
+        result.invertedList.appendPosting(ptr0Docid, locations, numLocations);
       }
     }
     result.invertedList.field = ptr0.invList.field;
@@ -146,6 +129,15 @@ public class QryopIlNear extends QryopIl {
     return result;
   }
 
+  /**
+   * Get the distance of this NEAR operator.
+   * 
+   * @return Max term distance of two candidate terms
+   */
+  public int getDistance() {
+    return distance;
+  }
+
   /*
    * Return a string version of this query operator.
    * 
@@ -163,26 +155,61 @@ public class QryopIlNear extends QryopIl {
   }
 
   /*
-   * Increment an element in a list of integers by one.
+   * Find the locations where the arguments occur in order, each within distance of the previous
+   * one, in one document. The matching is greedy: a match consumes one position of every argument,
+   * and matching continues after the consumed positions. The location of a match is the position of
+   * the last argument.
    * 
-   * @param list The list to be dealt with
-   * 
-   * @param idx The index of the integer to be incremented
+   * @param positions The positions of each argument in the document.
+   * @param cursors An array to use for the cursors into the positions.
+   * @return The number of locations, which are stored in the locations array.
    */
-  private void incListElem(List<Integer> list, int idx) {
-    int tmp = list.get(idx);
-    list.set(idx, tmp + 1);
-  }
+  private int matchLocations(int[][] positions, int[] cursors) {
 
-  /*
-   * Get the positions in the document currently under evaluation in the ArgPtr.
-   * 
-   * @param argPtr
-   * 
-   * @return The positions in the document currently under evaluation
-   */
-  private Vector<Integer> getPositions(ArgPtr argPtr) {
-    return argPtr.invList.postings.get(argPtr.nextDoc).positions;
+    int numArgs = positions.length;
+    int numLocations = 0;
+    Arrays.fill(cursors, 0);
+
+    EVALUATELOCATIONS: while (true) {
+
+      // Check whether any of the position lists is exhausted
+      for (int j = 0; j < numArgs; j++) {
+        if (cursors[j] >= positions[j].length) {
+          break EVALUATELOCATIONS;
+        }
+      }
+
+      for (int j = 1; j < numArgs; j++) {
+
+        // Get the positions under evaluation in the i'th and j'th query term
+        int iPos = positions[j - 1][cursors[j - 1]];
+        int jPos = positions[j][cursors[j]];
+
+        if (jPos - iPos <= 0) { // Not yet the right position.
+          cursors[j] = gallop(positions[j], cursors[j], iPos);
+          if (cursors[j] >= positions[j].length) {
+            break EVALUATELOCATIONS;
+          }
+          j--; // Backtrack
+        } else if (jPos - iPos > distance) { // Cannot match, use greedy algorithm.
+          // A match that uses this position of the j'th term, or a later one, cannot start before
+          // j * distance positions earlier, so the first term skips to there.
+          cursors[0] = gallop(positions[0], cursors[0] + 1, jPos - j * distance - 1);
+          continue EVALUATELOCATIONS;
+        }
+      }
+
+      // Add the location of the last term to locations
+      if (numLocations == locations.length) {
+        locations = Arrays.copyOf(locations, numLocations * 2);
+      }
+      locations[numLocations++] = positions[numArgs - 1][cursors[numArgs - 1]];
+      for (int i = 0; i < numArgs; i++) {
+        cursors[i]++;
+      }
+    }
+
+    return numLocations;
   }
 
   @Override
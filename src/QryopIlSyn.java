@@ -50,42 +50,78 @@ public class QryopIlSyn extends QryopIl {
     result.invertedList.field = new String(this.argPtrs.get(0).invList.field);
 
     // Each pass of the loop adds 1 document to result until all of
-    // the inverted lists are depleted. When a list is depleted, it
-    // is removed from argPtrs, so this loop runs until argPtrs is empty.
-
-    // This implementation is intended to be clear. A more efficient
-    // implementation would combine loops and use merge-sort.
-
-    while (this.argPtrs.size() > 0) {
-
-      int nextDocid = getSmallestCurrentDocid();
-
-      // Create a new posting that is the union of the posting lists
-      // that match the nextDocid.
-
-      List<Integer> positions = new ArrayList<Integer>();
+    // the inverted lists are depleted. The arguments that are not
+    // depleted are kept in a min-heap by their next docid, so the
+    // next document is at the top. Its positions are merged from the
+    // arguments that contain it with a second heap, keyed by their
+    // next position.
+
+    int numArgs = this.argPtrs.size();
+    int[] docHeap = new int[numArgs];
+    int docHeapSize = 0;
+    for (int i = 0; i < numArgs; i++) {
+      if (this.argPtrs.get(i).invList.df > 0)
+        docHeap[docHeapSize++] = i;
+    }
+    for (int i = docHeapSize / 2 - 1; i >= 0; i--)
+      siftDownDocid(docHeap, i, docHeapSize);
+
+    int[] matched = new int[numArgs];
+    int[][] positions = new int[numArgs][];
+    int[] cursors = new int[numArgs];
+    int[] posHeap = new int[numArgs];
+    int[] buffer = new int[16];
+
+    while (docHeapSize > 0) {
+
+      // Take all of the arguments that match the next docid off the heap.
+
+      int nextDocid = currentDocid(docHeap[0]);
+      int numMatched = 0;
+      int tf = 0;
+      while (docHeapSize > 0 && currentDocid(docHeap[0]) == nextDocid) {
+        ArgPtr ptri = this.argPtrs.get(docHeap[0]);
+        matched[numMatched] = docHeap[0];
+        positions[numMatched] = ptri.invList.getPositions(ptri.nextDoc);
+        tf += positions[numMatched].length;
+        numMatched++;
+        docHeap[0] = docHeap[--docHeapSize];
+        siftDownDocid(docHeap, 0, docHeapSize);
+      }
 
-      for (int i = 0; i < this.argPtrs.size(); i++) {
-        ArgPtr ptri = this.argPtrs.get(i);
+      // Merge their positions into the buffer.
 
-        if (ptri.invList.getDocid(ptri.nextDoc) == nextDocid) {
-          positions.addAll(ptri.invList.postings.get(ptri.nextDoc).positions);
-          ptri.nextDoc++;
+      if (buffer.length < tf)
+        buffer = new int[Math.max(tf, buffer.length * 2)];
+      if (numMatched == 1) {
+        System.arraycopy(positions[0], 0, buffer, 0, tf);
+      } else {
+        for (int i = 0; i < numMatched; i++) {
+          posHeap[i] = i;
+          cursors[i] = 0;
+        }
+        for (int i = numMatched / 2 - 1; i >= 0; i--)
+          siftDownPosition(posHeap, i, numMatched, positions, cursors);
+        int posHeapSize = numMatched;
+        for (int n = 0; n < tf; n++) {
+          int top = posHeap[0];
+          buffer[n] = positions[top][cursors[top]++];
+          if (cursors[top] >= positions[top].length)
+            posHeap[0] = posHeap[--posHeapSize];
+          siftDownPosition(posHeap, 0, posHeapSize, positions, cursors);
         }
       }
+      result.invertedList.appendPosting(nextDocid, buffer, tf);
 
-      Collections.sort(positions);
-      result.invertedList.appendPosting(nextDocid, positions);
-
-      // If an ArgPtr has reached the end of its list, remove it.
-      // The loop is backwards so that removing an arg does not
-      // interfere with iteration.
-
-      for (int i = this.argPtrs.size() - 1; i >= 0; i--) {
-        ArgPtr ptri = this.argPtrs.get(i);
+      // Advance the matched arguments, and put the ones that are not
+      // depleted back on the heap.
 
-        if (ptri.nextDoc >= ptri.invList.postings.size()) {
-          this.argPtrs.remove(i);
+      for (int i = 0; i < numMatched; i++) {
+        ArgPtr ptri = this.argPtrs.get(matched[i]);
+        ptri.nextDoc++;
+        if (ptri.nextDoc < ptri.invList.df) {
+          docHeap[docHeapSize] = matched[i];
+          siftUpDocid(docHeap, docHeapSize++);
         }
       }
     }
@@ -95,22 +131,60 @@ public class QryopIlSyn extends QryopIl {
     return result;
   }
 
-  /**
-   * Return the smallest unexamined docid from the ArgPtrs.
-   * 
-   * @return The smallest internal document id.
+  /*
+   * Return the next unexamined docid of an argument.
    */
-  public int getSmallestCurrentDocid() {
+  private int currentDocid(int arg) {
+    ArgPtr ptr = this.argPtrs.get(arg);
+    return ptr.invList.getDocid(ptr.nextDoc);
+  }
+
+  private void siftUpDocid(int[] heap, int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (currentDocid(heap[parent]) <= currentDocid(heap[i]))
+        break;
+      int tmp = heap[i];
+      heap[i] = heap[parent];
+      heap[parent] = tmp;
+      i = parent;
+    }
+  }
 
-    int nextDocid = Integer.MAX_VALUE;
+  private void siftDownDocid(int[] heap, int i, int size) {
+    while (2 * i + 1 < size) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && currentDocid(heap[child + 1]) < currentDocid(heap[child]))
+        child++;
+      if (currentDocid(heap[i]) <= currentDocid(heap[child]))
+        break;
+      int tmp = heap[i];
+      heap[i] = heap[child];
+      heap[child] = tmp;
+      i = child;
+    }
+  }
 
-    for (int i = 0; i < this.argPtrs.size(); i++) {
-      ArgPtr ptri = this.argPtrs.get(i);
-      if (nextDocid > ptri.invList.getDocid(ptri.nextDoc))
-        nextDocid = ptri.invList.getDocid(ptri.nextDoc);
+  private static void siftDownPosition(int[] heap, int i, int size, int[][] positions,
+      int[] cursors) {
+    while (2 * i + 1 < size) {
+      int child = 2 * i + 1;
+      if (child + 1 < size
+          && currentPosition(heap[child + 1], positions, cursors) < currentPosition(heap[child],
+              positions, cursors))
+        child++;
+      if (currentPosition(heap[i], positions, cursors) <= currentPosition(heap[child], positions,
+          cursors))
+        break;
+      int tmp = heap[i];
+      heap[i] = heap[child];
+      heap[child] = tmp;
+      i = child;
     }
+  }
 
-    return (nextDocid);
+  private static int currentPosition(int arg, int[][] positions, int[] cursors) {
+    return positions[arg][cursors[arg]];
   }
 
   /**
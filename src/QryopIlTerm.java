@@ -37,6 +37,24 @@ public class QryopIlTerm extends QryopIl {
     this.field = f;
   }
 
+  /**
+   * Get the term string of this TERM operator.
+   * 
+   * @return The processed term string.
+   */
+  public String getTerm() {
+    return this.term;
+  }
+
+  /**
+   * Get the field that this TERM operator matches in.
+   * 
+   * @return The field name.
+   */
+  public String getField() {
+    return this.field;
+  }
+
   /*
    * Every Qryop is required to have an add method that appends query arguments, but that doesn't
    * make sense for the Term query operator. So, it's here, but it does nothing. Ugly.
@@ -6,16 +6,16 @@
  */
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Vector;
+import java.util.Arrays;
 
 public class QryopIlWindow extends QryopIl {
 
   // Max term distance of two candidate terms
   private int distance;
 
+  // The match locations found in the current document, reused for all documents.
+  private int[] locations = new int[16];
+
   /**
    * Constructor. Create a WINDOW operator with a specific distance.
    * 
@@ -69,6 +69,13 @@ public class QryopIlWindow extends QryopIl {
     // document id. Use the first list to control the search for matches.
     ArgPtr ptr0 = this.argPtrs.get(0);
 
+    // The position arrays of the current document, a cursor into each, and the heap of arguments
+    // are reused for all documents.
+    int numArgs = this.argPtrs.size();
+    int[][] positions = new int[numArgs][];
+    int[] cursors = new int[numArgs];
+    int[] heap = new int[numArgs];
+
     EVALUATEDOCUMENTS: for (; ptr0.nextDoc < ptr0.invList.df; ptr0.nextDoc++) {
       int ptr0Docid = ptr0.invList.getDocid(ptr0.nextDoc);
 
@@ -90,47 +97,13 @@ public class QryopIlWindow extends QryopIl {
       }
 
       // Already satisfies AND condition, check for WINDOW condition
-      List<Integer> locations = new ArrayList<Integer>();
-      List<Integer> allPos = new ArrayList<Integer>(Collections.nCopies(this.args.size(), 0));
-      EVALUATELOCATIONS: while (true) {
-
-        // Check whether any of the position lists is exhausted
-        for (int j = 0; j < allPos.size(); j++) {
-          ArgPtr ptrj = this.argPtrs.get(j);
-          if (allPos.get(j) >= getPositions(ptrj).size()) {
-            break EVALUATELOCATIONS;
-          }
-        }
-
-        // Get the lower and upper bounds of the term locations
-        int lowerBound = getPositions(ptr0).get(allPos.get(0));
-        int upperBound = lowerBound;
-        int lowerBoundTerm = 0;
-
-        for (int j = 1; j < allPos.size(); j++) {
-          ArgPtr ptrj = this.argPtrs.get(j);
-          int jPos = getPositions(ptrj).get(allPos.get(j));
-          if (jPos < lowerBound) {
-            lowerBound = jPos;
-            lowerBoundTerm = j;
-          } else if (jPos > upperBound) {
-            upperBound = jPos;
-          }
-        }
-
-        if (upperBound - lowerBound < distance) {
-          // Add the location of the last term to locations
-          locations.add(upperBound);
-          for (int i = 0; i < allPos.size(); i++) {
-            incListElem(allPos, i);
-          }
-        } else {
-          incListElem(allPos, lowerBoundTerm);
-        }
+      for (int j = 0; j < numArgs; j++) {
+        positions[j] = this.argPtrs.get(j).invList.getPositions(this.argPtrs.get(j).nextDoc);
       }
+      int numLocations = matchLocations(positions, cursors, heap);
 
-      if (!locations.isEmpty()) {
-        result.invertedList.appendPosting(ptr0Docid, locations);
+      if (numLocations > 0) {
+        result.invertedList.appendPosting(ptr0Docid, locations, numLocations);
       }
     }
     result.invertedList.field = ptr0.invList.field;
@@ -157,26 +130,85 @@ public class QryopIlWindow extends QryopIl {
   }
 
   /*
-   * Increment an element in a list of integers by one.
+   * Find the locations where all arguments occur within a window of distance positions, in one
+   * document. The arguments are kept in a min-heap by their current position (ties go to the
+   * earlier argument), and the largest current position is tracked, since positions only grow. If
+   * the window from the smallest to the largest position is too wide, the argument with the
+   * smallest position moves past the positions that cannot fit in a window with the largest one.
+   * Otherwise the window is a match at the largest position, and every argument moves on.
    * 
-   * @param list The list to be dealt with
-   * 
-   * @param idx The index of the integer to be incremented
+   * @param positions The positions of each argument in the document.
+   * @param cursors An array to use for the cursors into the positions.
+   * @param heap An array to use for the heap of arguments.
+   * @return The number of locations, which are stored in the locations array.
    */
-  private void incListElem(List<Integer> list, int idx) {
-    int tmp = list.get(idx);
-    list.set(idx, tmp + 1);
+  private int matchLocations(int[][] positions, int[] cursors, int[] heap) {
+
+    int numArgs = positions.length;
+    int numLocations = 0;
+    Arrays.fill(cursors, 0);
+
+    while (true) {
+
+      // (Re)build the heap, and find the upper bound of the term locations
+      int upperBound = Integer.MIN_VALUE;
+      for (int j = 0; j < numArgs; j++) {
+        if (cursors[j] >= positions[j].length) {
+          return numLocations;
+        }
+        heap[j] = j;
+        upperBound = Math.max(upperBound, positions[j][cursors[j]]);
+      }
+      for (int i = numArgs / 2 - 1; i >= 0; i--) {
+        siftDown(heap, i, positions, cursors);
+      }
+
+      // Move the lowest argument until the window fits
+      while (upperBound - positions[heap[0]][cursors[heap[0]]] >= distance) {
+        int j = heap[0];
+        cursors[j] = gallop(positions[j], cursors[j], upperBound - distance);
+        if (cursors[j] >= positions[j].length) {
+          return numLocations;
+        }
+        upperBound = Math.max(upperBound, positions[j][cursors[j]]);
+        siftDown(heap, 0, positions, cursors);
+      }
+
+      // Add the location of the last term to locations
+      if (numLocations == locations.length) {
+        locations = Arrays.copyOf(locations, numLocations * 2);
+      }
+      locations[numLocations++] = upperBound;
+      for (int j = 0; j < numArgs; j++) {
+        cursors[j]++;
+      }
+    }
   }
 
   /*
-   * Get the positions in the document currently under evaluation in the ArgPtr.
-   * 
-   * @param argPtr
-   * 
-   * @return The positions in the document currently under evaluation
+   * Whether argument a comes before argument b in the heap.
    */
-  private Vector<Integer> getPositions(ArgPtr argPtr) {
-    return argPtr.invList.postings.get(argPtr.nextDoc).positions;
+  private static boolean isBefore(int a, int b, int[][] positions, int[] cursors) {
+    int aPos = positions[a][cursors[a]];
+    int bPos = positions[b][cursors[b]];
+    return aPos < bPos || (aPos == bPos && a < b);
+  }
+
+  private static void siftDown(int[] heap, int i, int[][] positions, int[] cursors) {
+    int size = heap.length;
+    while (2 * i + 1 < size) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && isBefore(heap[child + 1], heap[child], positions, cursors)) {
+        child++;
+      }
+      if (!isBefore(heap[child], heap[i], positions, cursors)) {
+        break;
+      }
+      int tmp = heap[i];
+      heap[i] = heap[child];
+      heap[child] = tmp;
+      i = child;
+    }
   }
 
   @Override
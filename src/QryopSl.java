@@ -8,9 +8,15 @@
  */
 
 import java.io.*;
+import java.util.*;
 
 public abstract class QryopSl extends Qryop {
 
+  // The Indri default score of this operator in closed form, or null if it has none. It is set when
+  // the operator is evaluated.
+
+  protected IndriDefaultScore indriDefault;
+
   /**
    * Use the specified retrieval model to evaluate the query arguments. Define and return ArgPtrs
    * that the query operator can use.
@@ -37,6 +43,66 @@ public abstract class QryopSl extends Qryop {
     }
   }
 
+  /**
+   * Evaluate the arguments one at a time and merge their score lists, keeping at most
+   * QryEval.spillBudget bytes of them in memory. Lists that do not fit are spilled to disk.
+   * 
+   * @param r A retrieval model that controls how the operator behaves.
+   * @param combine How the scores of a document in several arguments are combined.
+   * @return The merged score list, sorted by docid.
+   * @throws IOException
+   */
+  protected ScoreList mergeArgsBounded(RetrievalModel r, ScoreRuns.Combine combine)
+      throws IOException {
+
+    ScoreRuns runs = new ScoreRuns(QryEval.spillBudget, QryEval.spillDir);
+    try {
+      addArgRuns(r, runs);
+      return runs.merge(combine);
+    } finally {
+      runs.close();
+    }
+  }
+
+  /*
+   * Evaluate the arguments into one run each. Terms are scored straight from their postings, and
+   * arguments that merge their own arguments within the budget stream the merged list into the run,
+   * so neither builds a score list.
+   */
+  private void addArgRuns(RetrievalModel r, ScoreRuns runs) throws IOException {
+
+    for (int i = 0; i < this.args.size(); i++) {
+      if (!QryopSl.class.isInstance(this.args.get(i)))
+        this.args.set(i, new QryopSlScore(this.args.get(i)));
+
+      QryopSl arg = (QryopSl) this.args.get(i);
+      ScoreRuns.Combine argCombine = arg.getBoundedCombine(r);
+      if (argCombine != null) {
+        ScoreRuns argRuns = runs.nested();
+        try {
+          arg.addArgRuns(r, argRuns);
+          argRuns.mergeInto(argCombine, runs);
+        } finally {
+          argRuns.close();
+        }
+      } else if (!(arg instanceof QryopSlScore && ((QryopSlScore) arg).scoreTermInto(r, runs))) {
+        runs.add(arg.evaluate(r).docScores);
+      }
+    }
+  }
+
+  /*
+   * Get how this operator combines the scores of its arguments if it merges them within
+   * QryEval.spillBudget.
+   * 
+   * @param r A retrieval model that controls how the operator behaves.
+   * 
+   * @return How the scores are combined, or null if the operator does not merge within the budget.
+   */
+  protected ScoreRuns.Combine getBoundedCombine(RetrievalModel r) {
+    return null;
+  }
+
   /*
    * Calculate the default score for the specified document if it does not match the query operator.
    * This score is 0 for many retrieval models, but not all retrieval models.
@@ -49,6 +115,20 @@ public abstract class QryopSl extends Qryop {
    */
   public abstract double getDefaultScore(RetrievalModel r, long docid) throws IOException;
 
+  /*
+   * Get the closed form Indri default scores of the arguments. The arguments must have been
+   * evaluated.
+   * 
+   * @return The default scores, with null for arguments that have no closed form.
+   */
+  protected List<IndriDefaultScore> getArgIndriDefaults() {
+    List<IndriDefaultScore> defaults = new ArrayList<IndriDefaultScore>();
+    for (Qryop arg : args) {
+      defaults.add(((QryopSl) arg).indriDefault);
+    }
+    return defaults;
+  }
+
   /*
    * Check whether all lists have been retrieved.
    * 
@@ -40,9 +40,10 @@ public class QryopSlAnd extends QryopSl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean)
+    ModelScorer.Family family = r.getScorer().getFamily();
+    if (family == ModelScorer.Family.EXACT_MATCH)
       return (evaluateBoolean(r));
-    else if (r instanceof RetrievalModelIndri) {
+    else if (family == ModelScorer.Family.LANGUAGE_MODEL) {
       return (evaluateIndri(r));
     }
 
@@ -89,13 +90,10 @@ public class QryopSlAnd extends QryopSl {
 
     EVALUATEDOCUMENTS: for (; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc++) {
 
+      // The score of a match is the lowest score of the arguments. (Under Unranked Boolean all
+      // scores are 1.0.)
       int ptr0Docid = ptr0.scoreList.getDocid(ptr0.nextDoc);
-      double docScore;
-      if (r instanceof RetrievalModelUnrankedBoolean) {
-        docScore = 1.0;
-      } else {
-        docScore = ptr0.scoreList.getDocidScore(ptr0.nextDoc);
-      }
+      double docScore = ptr0.scoreList.getDocidScore(ptr0.nextDoc);
 
       // Do the other query arguments have the ptr0Docid?
 
@@ -111,8 +109,7 @@ public class QryopSlAnd extends QryopSl {
           else if (ptrj.scoreList.getDocid(ptrj.nextDoc) < ptr0Docid)
             ptrj.nextDoc++; // Not yet at the right doc.
           else { // ptrj matches ptr0Docid
-            if (r instanceof RetrievalModelRankedBoolean
-                && ptrj.scoreList.getDocidScore(ptrj.nextDoc) < docScore) {
+            if (ptrj.scoreList.getDocidScore(ptrj.nextDoc) < docScore) {
               docScore = ptrj.scoreList.getDocidScore(ptrj.nextDoc);
             }
             break;
@@ -142,6 +139,7 @@ public class QryopSlAnd extends QryopSl {
     // Initialization
     allocArgPtrs(r);
     QryResult result = new QryResult();
+    this.indriDefault = IndriDefaultScore.weightedProduct(getArgIndriDefaults(), null);
 
     while (!isListEnd()) {
       double docScore = 1.0;
@@ -174,7 +172,10 @@ public class QryopSlAnd extends QryopSl {
    */
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
 
-    if (r instanceof RetrievalModelIndri) {
+    if (r.getScorer().getFamily() == ModelScorer.Family.LANGUAGE_MODEL) {
+      if (indriDefault != null) {
+        return indriDefault.getScore((int) docid);
+      }
       double docScore = 1.0;
       for (Qryop arg : args) {
         double p = ((QryopSl)arg).getDefaultScore(r, docid);
@@ -0,0 +1,166 @@
+/**
+ * This class implements the FIELDS operator, which scores one term in several fields at once, e.g.,
+ * #FIELDS(0.3 apple.title 0.7 apple.body). The arguments are TERM operators, each with the weight
+ * of its field. The retrieval model merges the inverted lists of all fields in one
+ * document-at-a-time pass, and scores each document from its term frequencies and lengths in every
+ * field, without building a score list for each field.
+ *
+ * Under BM25 it is BM25F: the term frequencies are length normalized per field, weighted and added
+ * into one pseudo frequency, which is saturated once with k_1. The idf uses the number of documents
+ * that contain the term in any of the fields. Under Indri it is a mixture of the smoothed field
+ * language models, which scores the same as #WSUM of the terms. Under the boolean models it matches
+ * documents that contain the term in any field.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class QryopSlFields extends QryopSl {
+
+  List<Double> weights;
+
+  // The default scores of the term in each field, for language models. Set when the operator is
+  // evaluated.
+  private List<IndriDefaultScore> fieldDefaults;
+
+  /**
+   * It is convenient for the constructor to accept a variable number of arguments.
+   *
+   * @param q A query argument (a TERM operator).
+   */
+  public QryopSlFields(Qryop... q) {
+    this.weights = new ArrayList<Double>();
+    for (int i = 0; i < q.length; i++)
+      this.args.add(q[i]);
+  }
+
+  /**
+   * Calculate the default score for the specified document if it does not match the query operator.
+   * This score is 0 for many retrieval models, but not all retrieval models.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @param docid The internal id of the document that needs a default score.
+   * @return The default score.
+   */
+  @Override
+  public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+    if (indriDefault != null) {
+      return indriDefault.getScore((int) docid);
+    }
+    if (fieldDefaults != null) {
+      double sumW = sum(weights);
+      double docScore = 0.0;
+      for (int i = 0; i < fieldDefaults.size(); i++) {
+        docScore += fieldDefaults.get(i).getScore((int) docid) * weights.get(i) / sumW;
+      }
+      return docScore;
+    }
+
+    return 0.0;
+  }
+
+  /**
+   * Appends an argument to the list of query operator arguments. This simplifies the design of some
+   * query parsing architectures.
+   *
+   * @param q The query argument (query operator) to append.
+   * @return void
+   * @throws IOException
+   */
+  @Override
+  public void add(Qryop q) throws IOException {
+    this.args.add(q);
+  }
+
+  /**
+   * Evaluates the query operator, including any child operators and returns the result.
+   *
+   * @param r A retrieval model that controls how the operator behaves
+   * @return The result of evaluating the query
+   * @throws IOException
+   */
+  @Override
+  public QryResult evaluate(RetrievalModel r) throws IOException {
+
+    // Fetch the inverted list of the term in each field.
+    int numFields = args.size();
+    InvList[] invLists = new InvList[numFields];
+    for (int i = 0; i < numFields; i++) {
+      if (!(args.get(i) instanceof QryopIlTerm))
+        QryEval.fatalError("Error:  Invalid argument in " + this.toString());
+      invLists[i] = args.get(i).evaluate(r).invertedList;
+    }
+
+    ModelScorer.FieldScores fieldScores = r.getScorer().scoreFields(invLists, weights);
+    this.fieldDefaults = fieldScores.fieldDefaults;
+    if (fieldDefaults != null) {
+      this.indriDefault = IndriDefaultScore.weightedSum(fieldDefaults, weights);
+    }
+
+    QryResult result = new QryResult();
+    result.docScores = fieldScores.scores;
+    return result;
+  }
+
+  private static double sum(List<Double> values) {
+    double sum = 0.0;
+    for (Double value : values) {
+      sum += value;
+    }
+    return sum;
+  }
+
+  /**
+   * Return a string version of this query operator.
+   *
+   * @return The string version of this query operator.
+   */
+  @Override
+  public String toString() {
+    String result = new String();
+
+    for (int i = 0; i < this.args.size(); i++)
+      result += this.weights.get(i) + " " + this.args.get(i).toString() + " ";
+
+    return ("#FIELDS( " + result + ")");
+  }
+
+  /**
+   * Appends a weight to the list of weights. This simplifies the design of some query parsing
+   * architectures.
+   *
+   * @param w The weight to append.
+   * @return void
+   * @throws IOException
+   */
+  @Override
+  public void addWeight(double w) throws IOException {
+    this.weights.add(w);
+  }
+
+  /**
+   * Checks whether a query operator needs to read weight.
+   *
+   * @return needWeight
+   */
+  @Override
+  public boolean needWeight() {
+    return (this.weights.size() <= this.args.size());
+  }
+
+  /**
+   * Removes the last weight from the list of weights. This simplifies the design of some query
+   * parsing architectures.
+   *
+   * @return void
+   * @throws IOException
+   */
+  public void removeWeight() throws IOException {
+    this.weights.remove(this.weights.size() - 1);
+  }
+
+}
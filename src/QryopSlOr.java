@@ -32,10 +32,6 @@ public class QryopSlOr extends QryopSl {
    */
   @Override
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-
-    if (r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean)
-      return (0.0);
-
     return 0.0;
   }
 
@@ -62,12 +58,20 @@ public class QryopSlOr extends QryopSl {
   @Override
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean)
+    if (r.getScorer().getFamily() == ModelScorer.Family.EXACT_MATCH)
       return (evaluateBoolean(r));
 
     return null;
   }
 
+  @Override
+  protected ScoreRuns.Combine getBoundedCombine(RetrievalModel r) {
+    if (QryEval.spillBudget > 0 && r.getScorer().getFamily() == ModelScorer.Family.EXACT_MATCH) {
+      return ScoreRuns.Combine.MAX;
+    }
+    return null;
+  }
+
   /**
    * Evaluates the query operator for boolean retrieval models, including any child operators and
    * returns the result.
@@ -78,30 +82,29 @@ public class QryopSlOr extends QryopSl {
    */
   public QryResult evaluateBoolean(RetrievalModel r) throws IOException {
 
+    QryResult result = new QryResult();
+
+    // Keep memory bounded for arguments with very long lists if asked to
+    if (getBoundedCombine(r) != null) {
+      result.docScores = mergeArgsBounded(r, ScoreRuns.Combine.MAX);
+      return result;
+    }
+
     // Initialization
     allocArgPtrs(r);
-    QryResult result = new QryResult();
 
-    // Put all the scores into the docScores map
+    // Put all the scores into the docScores map. Add a score if it has not appeared, or update a
+    // score if got a higher one. (Under Unranked Boolean all scores are 1.0.)
     Map<Integer, Double> docScores = new HashMap<Integer, Double>();
     for (ArgPtr argPtr : argPtrs) {
       for (; argPtr.nextDoc < argPtr.scoreList.scores.size(); argPtr.nextDoc++) {
-        if (r instanceof RetrievalModelUnrankedBoolean) {
-          // For unranked retrieval model, add a score only if it has not appeared yet.
-          if (!docScores.containsKey(argPtr.scoreList.getDocid(argPtr.nextDoc))) {
-            docScores.put(argPtr.scoreList.getDocid(argPtr.nextDoc), 1.0);
-          }
+        if (!docScores.containsKey(argPtr.scoreList.getDocid(argPtr.nextDoc))) {
+          docScores.put(argPtr.scoreList.getDocid(argPtr.nextDoc),
+              argPtr.scoreList.getDocidScore(argPtr.nextDoc));
         } else {
-          // For ranked retrieval model, add a score if it has not appeared, or update a score if
-          // got a higher one.
-          if (!docScores.containsKey(argPtr.scoreList.getDocid(argPtr.nextDoc))) {
-            docScores.put(argPtr.scoreList.getDocid(argPtr.nextDoc),
-                argPtr.scoreList.getDocidScore(argPtr.nextDoc));
-          } else {
-            double newScore = argPtr.scoreList.getDocidScore(argPtr.nextDoc);
-            if (newScore > docScores.get(argPtr.scoreList.getDocid(argPtr.nextDoc))) {
-              docScores.put(argPtr.scoreList.getDocid(argPtr.nextDoc), newScore);
-            }
+          double newScore = argPtr.scoreList.getDocidScore(argPtr.nextDoc);
+          if (newScore > docScores.get(argPtr.scoreList.getDocid(argPtr.nextDoc))) {
+            docScores.put(argPtr.scoreList.getDocid(argPtr.nextDoc), newScore);
           }
         }
       }
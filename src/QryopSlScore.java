@@ -9,12 +9,20 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
 public class QryopSlScore extends QryopSl {
 
-  private double p_mle;
+  private long ctf;
   private String field;
-  private double lambda;
-  private double mu;
+
+  // Multiplier of the BM25 score. QryOptimizer folds duplicate arguments of a #SUM into one SCORE
+  // operator with a weight equal to the number of duplicates.
+  private double weight = 1.0;
 
   /**
    * Construct a new SCORE operator. The SCORE operator accepts just one argument.
@@ -34,6 +42,24 @@ public class QryopSlScore extends QryopSl {
    */
   public QryopSlScore() {}
 
+  /**
+   * Get the multiplier of the BM25 score.
+   * 
+   * @return The weight of this SCORE operator.
+   */
+  public double getWeight() {
+    return this.weight;
+  }
+
+  /**
+   * Set the multiplier of the BM25 score.
+   * 
+   * @param weight The weight of this SCORE operator.
+   */
+  public void setWeight(double weight) {
+    this.weight = weight;
+  }
+
   /**
    * Appends an argument to the list of query operator arguments. This simplifies the design of some
    * query parsing architectures.
@@ -45,7 +71,8 @@ public class QryopSlScore extends QryopSl {
   }
 
   /**
-   * Evaluate the query operator.
+   * Evaluate the query operator. The documents of the argument are scored by the term scorer of
+   * the retrieval model.
    * 
    * @param r A retrieval model that controls how the operator behaves.
    * @return The result of evaluating the query.
@@ -53,129 +80,111 @@ public class QryopSlScore extends QryopSl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean)
-      return (evaluateBoolean(r));
-    else if (r instanceof RetrievalModelIndri) {
-      return (evaluateIndri(r));
-    } else if (r instanceof RetrievalModelBM25) {
-      return (evaluateBM25(r));
-    }
-
-    return null;
-  }
+    ModelScorer scorer = r.getScorer();
 
-  /**
-   * Evaluate the query operator for boolean retrieval models.
-   * 
-   * @param r A retrieval model that controls how the operator behaves.
-   * @return The result of evaluating the query.
-   * @throws IOException
-   */
-  public QryResult evaluateBoolean(RetrievalModel r) throws IOException {
+    // Reuse the score list of an identical SCORE operator if it is cached.
+    String cacheKey = null;
+    if (QryEval.scoreListCache != null) {
+      cacheKey = r + "\n" + this;
+      ScoreListCache.Entry entry = QryEval.scoreListCache.get(cacheKey);
+      if (entry != null)
+        return (evaluateCached(scorer, entry));
+    }
 
     // Evaluate the query argument.
     QryResult result = args.get(0).evaluate(r);
 
+    // Save the field and the default score of the argument for future default score use.
+    InvList invList = result.invertedList;
+    this.field = invList.field;
+    this.ctf = invList.ctf;
+    ModelScorer.TermScorer termScorer = scorer.forTerm(field, invList.df, ctf, weight);
+    this.indriDefault = termScorer.getDefault();
+
     // Each pass of the loop computes a score for one document. Note:
     // If the evaluate operation above returned a score list (which is
     // very possible), this loop gets skipped.
 
-    for (int i = 0; i < result.invertedList.df; i++) {
-
-      // DIFFERENT RETRIEVAL MODELS IMPLEMENT THIS DIFFERENTLY.
-      // Unranked Boolean. All matching documents get a score of 1.0.
-      if (r instanceof RetrievalModelUnrankedBoolean) {
-        result.docScores.add(result.invertedList.postings.get(i).docid, (float) 1.0);
-      } else {
-        result.docScores.add(result.invertedList.postings.get(i).docid,
-            (float) result.invertedList.postings.get(i).tf);
-      }
+    for (int i = 0; i < invList.df; i++) {
+      InvList.DocPosting posting = invList.postings.get(i);
+      result.docScores.add(posting.docid, termScorer.score(posting.docid, posting.tf));
     }
 
     // The SCORE operator should not return a populated inverted list.
     // If there is one, replace it with an empty inverted list.
-    if (result.invertedList.df > 0)
+    if (invList.df > 0)
       result.invertedList = new InvList();
 
+    if (cacheKey != null)
+      QryEval.scoreListCache.put(cacheKey, field, ctf, result.docScores);
+
     return result;
   }
 
   /**
-   * Evaluate the query operator for Indri retrieval model.
+   * Return a cached score list, and restore what the operator needs for default scores.
    * 
-   * @param r A retrieval model that controls how the operator behaves.
+   * @param scorer The scorer of the retrieval model.
+   * @param entry The cached score list of this operator.
    * @return The result of evaluating the query.
    * @throws IOException
    */
-  public QryResult evaluateIndri(RetrievalModel r) throws IOException {
-
-    // Evaluate the query argument.
-    QryResult result = args.get(0).evaluate(r);
-
-    // Save field, p_mle, lambda, and mu into the SCORE operator for future default score use.
-    int ctf = result.invertedList.ctf;
-    this.field = result.invertedList.field;
-    long colLen = QryEval.READER.getSumTotalTermFreq(field);
-    this.p_mle = (double) ctf / colLen;
-    this.lambda = r.getParameter("lambda");
-    this.mu = r.getParameter("mu");
-
-    for (int i = 0; i < result.invertedList.df; i++) {
-      double tf = result.invertedList.postings.get(i).tf;
-      long docLen = QryEval.dls.getDocLength(field, result.invertedList.postings.get(i).docid);
-      double score = (1 - lambda) * (tf + mu * p_mle) / ((double) docLen + mu) + lambda * p_mle;
-      result.docScores.add(result.invertedList.postings.get(i).docid, score);
-    }
+  private QryResult evaluateCached(ModelScorer scorer, ScoreListCache.Entry entry)
+      throws IOException {
 
-    // The SCORE operator should not return a populated inverted list.
-    // If there is one, replace it with an empty inverted list.
-    if (result.invertedList.df > 0)
-      result.invertedList = new InvList();
+    this.field = entry.field;
+    this.ctf = entry.ctf;
+    this.indriDefault = scorer.forTerm(field, entry.docids.length, ctf, weight).getDefault();
 
+    QryResult result = new QryResult();
+    result.docScores = entry.toScoreList();
     return result;
   }
 
   /**
-   * Evaluate the query operator for BM25 retrieval model.
+   * Score the documents of a term argument straight from its postings into a new run, without
+   * building its inverted list or score list. The postings are read without positions. Other
+   * arguments, and terms whose score list may be cached, are left to evaluate.
    * 
    * @param r A retrieval model that controls how the operator behaves.
-   * @return The result of evaluating the query.
+   * @param runs The runs that get the scores.
+   * @return True if the documents were scored, or false if nothing was done.
    * @throws IOException
    */
-  public QryResult evaluateBM25(RetrievalModel r) throws IOException {
-
-    // Evaluate the query argument.
-    QryResult result = args.get(0).evaluate(r);
-
-    // No need to save the parameters into SCORE operator because BM25 does not make use of
-    // QryopSlScore.defaultScore()
-    double b = r.getParameter("b");
-    double k_1 = r.getParameter("k_1");
-    double k_3 = r.getParameter("k_3");
-    this.field = result.invertedList.field;
-    double N = QryEval.READER.numDocs();
-    double avglen = (double) QryEval.READER.getSumTotalTermFreq(field) / (double) QryEval.READER.getDocCount(field);
-    double qtf = 1.0;
-    double df = result.invertedList.df;
-
-    for (int i = 0; i < df; i++) {
-      double tf = result.invertedList.postings.get(i).tf;
-      double docLen = QryEval.dls.getDocLength(field, result.invertedList.postings.get(i).docid);
-      double idf_weight =
-          Math.log((N - df + 0.5) / (df + 0.5));
-      idf_weight = Math.max(idf_weight, 0.0);
-      double tf_weight = tf / (tf + k_1 * ((1 - b) + b * docLen / avglen));
-      double user_weight = (k_3 + 1) * qtf / (k_3 + qtf);
-      double score = idf_weight * tf_weight * user_weight;
-      result.docScores.add(result.invertedList.postings.get(i).docid, score);
+  public boolean scoreTermInto(RetrievalModel r, ScoreRuns runs) throws IOException {
+
+    // The statistics of the term must be known before the first posting is scored, so they come
+    // from the index, which only agrees with the postings if no documents are deleted.
+    if (!(args.get(0) instanceof QryopIlTerm) || QryEval.scoreListCache != null
+        || QryEval.READER.hasDeletions())
+      return false;
+
+    QryopIlTerm arg = (QryopIlTerm) args.get(0);
+    BytesRef termBytes = new BytesRef(arg.getTerm());
+    Term term = new Term(arg.getField(), termBytes);
+    int df = QryEval.READER.docFreq(term);
+    long termCtf = (df < 1) ? 0 : QryEval.READER.totalTermFreq(term);
+    if (termCtf < 0)
+      return false;
+
+    this.field = arg.getField();
+    this.ctf = termCtf;
+    ModelScorer.TermScorer termScorer = r.getScorer().forTerm(field, df, ctf, weight);
+    this.indriDefault = termScorer.getDefault();
+
+    runs.startRun();
+    if (df > 0) {
+      DocsEnum docs =
+          MultiFields.getTermDocsEnum(QryEval.READER, MultiFields.getLiveDocs(QryEval.READER),
+              field, termBytes, DocsEnum.FLAG_FREQS);
+      while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+        runs.append(docs.docID(), termScorer.score(docs.docID(), docs.freq()));
+      }
+      RunReport.countPostings(df);
     }
+    runs.endRun();
 
-    // The SCORE operator should not return a populated inverted list.
-    // If there is one, replace it with an empty inverted list.
-    if (result.invertedList.df > 0)
-      result.invertedList = new InvList();
-
-    return result;
+    return true;
   }
 
   /*
@@ -190,10 +199,8 @@ public class QryopSlScore extends QryopSl {
    */
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
 
-    if (r instanceof RetrievalModelIndri) {
-      long docLen = QryEval.dls.getDocLength(this.field, (int) docid);
-      double score = (1 - lambda) * mu * p_mle / ((double) docLen + mu) + lambda * p_mle;
-      return score;
+    if (indriDefault != null) {
+      return indriDefault.getScore((int) docid);
     }
 
     return 0.0;
@@ -211,6 +218,8 @@ public class QryopSlScore extends QryopSl {
     for (Iterator<Qryop> i = this.args.iterator(); i.hasNext();)
       result += (i.next().toString() + " ");
 
+    if (weight != 1.0)
+      return ("#SCORE/" + weight + "( " + result + ")");
     return ("#SCORE( " + result + ")");
   }
 
@@ -58,13 +58,21 @@ public class QryopSlSum extends QryopSl {
   @Override
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
-    if (r instanceof RetrievalModelBM25) {
+    if (r.getScorer().getFamily() == ModelScorer.Family.SUM) {
       return evaluateBM25(r);
     }
 
     return null;
   }
 
+  @Override
+  protected ScoreRuns.Combine getBoundedCombine(RetrievalModel r) {
+    if (QryEval.spillBudget > 0 && r.getScorer().getFamily() == ModelScorer.Family.SUM) {
+      return ScoreRuns.Combine.SUM;
+    }
+    return null;
+  }
+
   /**
    * Evaluates the query operator for Indri retrieval model, including any child operators and
    * returns the result.
@@ -75,9 +83,16 @@ public class QryopSlSum extends QryopSl {
    */
   public QryResult evaluateBM25(RetrievalModel r) throws IOException {
 
+    QryResult result = new QryResult();
+
+    // Keep memory bounded for arguments with very long lists if asked to
+    if (getBoundedCombine(r) != null) {
+      result.docScores = mergeArgsBounded(r, ScoreRuns.Combine.SUM);
+      return result;
+    }
+
     // Initialization
     allocArgPtrs(r);
-    QryResult result = new QryResult();
 
     Map<Integer, Double> docScores = new HashMap<Integer, Double>();
     for (ArgPtr argPtr : argPtrs) {
@@ -61,7 +61,7 @@ public class QryopSlWand extends QryopSl {
   @Override
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
-    if (r instanceof RetrievalModelIndri) {
+    if (r.getScorer().getFamily() == ModelScorer.Family.LANGUAGE_MODEL) {
       return (evaluateIndri(r));
     }
 
@@ -81,6 +81,7 @@ public class QryopSlWand extends QryopSl {
     // Initialization
     allocArgPtrs(r);
     QryResult result = new QryResult();
+    this.indriDefault = IndriDefaultScore.zero();
     double sumW = 0.0;
     for (Double w : weights) {
       sumW += w;
@@ -35,7 +35,10 @@ public class QryopSlWsum extends QryopSl {
    */
   @Override
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-    if (r instanceof RetrievalModelIndri) {
+    if (r.getScorer().getFamily() == ModelScorer.Family.LANGUAGE_MODEL) {
+      if (indriDefault != null) {
+        return indriDefault.getScore((int) docid);
+      }
       double sumW = 0.0;
       for (Double w : weights) {
         sumW += w;
@@ -75,7 +78,7 @@ public class QryopSlWsum extends QryopSl {
   @Override
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
-    if (r instanceof RetrievalModelIndri) {
+    if (r.getScorer().getFamily() == ModelScorer.Family.LANGUAGE_MODEL) {
       return (evaluateIndri(r));
     }
 
@@ -95,6 +98,7 @@ public class QryopSlWsum extends QryopSl {
     // Initialization
     allocArgPtrs(r);
     QryResult result = new QryResult();
+    this.indriDefault = IndriDefaultScore.weightedSum(getArgIndriDefaults(), weights);
     double sumW = 0.0;
     for (Double w : weights) {
       sumW += w;
@@ -0,0 +1,323 @@
+/**
+ * This class reads an initial ranking file in trec_eval format for relevance feedback. Instead of
+ * reading the whole file, it keeps an index from query id to the byte offsets where the query's
+ * rows start, and parses only the rows that are asked for from a memory-mapped window of the file.
+ *
+ * The index is built with one scan of the file, and saved next to it (with the suffix .idx) so that
+ * later runs can load it. A saved index is only used if the size and modification time of the
+ * ranking file still match.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RankingFile {
+
+  private static final int MAGIC = 0x52414e31;
+  private static final int WINDOW_SIZE = 1 << 16;
+
+  /**
+   * The top rows of one query, as parallel arrays of internal docids and scores.
+   */
+  public static class Ranking {
+
+    int[] docids;
+    double[] scores;
+    int size;
+
+    /**
+     * @return The number of documents.
+     */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * @param i Rank of the document, from 0.
+     * @return The internal document id.
+     */
+    public int getDocid(int i) {
+      return docids[i];
+    }
+
+    /**
+     * @param i Rank of the document, from 0.
+     * @return The score of the document.
+     */
+    public double getScore(int i) {
+      return scores[i];
+    }
+  }
+
+  private File file;
+  private long length;
+  private FileChannel channel;
+
+  // For each query, the offsets of the runs of consecutive rows that belong to it, in file order.
+  private Map<String, List<Long>> index;
+
+  /**
+   * Open a ranking file, and load or build its index.
+   *
+   * @param file The ranking file.
+   * @throws IOException
+   */
+  public RankingFile(File file) throws IOException {
+
+    this.file = file;
+    this.length = file.length();
+    this.channel = new RandomAccessFile(file, "r").getChannel();
+
+    File indexFile = new File(file.getPath() + ".idx");
+    this.index = loadIndex(indexFile);
+    if (this.index == null) {
+      this.index = buildIndex();
+      saveIndex(indexFile);
+    }
+  }
+
+  /**
+   * Close the ranking file.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Get the first rows of a query.
+   *
+   * @param queryId ID of the query.
+   * @param n The maximum number of rows.
+   * @return The ranking, which is empty if the query is not in the file.
+   * @throws Exception
+   */
+  public Ranking getRanking(String queryId, int n) throws Exception {
+
+    Ranking ranking = new Ranking();
+    ranking.docids = new int[n];
+    ranking.scores = new double[n];
+
+    List<Long> runs = index.get(queryId);
+    if (runs == null) {
+      return ranking;
+    }
+
+    byte[] qid = queryId.getBytes("UTF-8");
+    for (int r = 0; r < runs.size() && ranking.size < n; r++) {
+
+      // Map a window of the file at the run, and grow it if the rows do not fit.
+      long offset = runs.get(r);
+      int windowSize = WINDOW_SIZE;
+      MappedByteBuffer window = map(offset, windowSize);
+      int position = 0;
+      while (ranking.size < n && offset + position < length) {
+
+        int lineEnd = position;
+        while (lineEnd < window.limit() && window.get(lineEnd) != '\n') {
+          lineEnd++;
+        }
+        if (lineEnd == window.limit() && offset + lineEnd < length) {
+          windowSize *= 2;
+          window = map(offset, windowSize);
+          continue;
+        }
+
+        if (!startsWith(window, position, lineEnd, qid)) {
+          break;
+        }
+
+        // Columns: query id, Q0, external id, rank, score, run id.
+        String extId = column(window, position, lineEnd, 2);
+        String score = column(window, position, lineEnd, 4);
+        if (extId == null || score == null) {
+          throw new IOException("Malformed row in " + file + " at offset " + (offset + position));
+        }
+
+        ranking.docids[ranking.size] = QryEval.getInternalDocid(extId);
+        ranking.scores[ranking.size] = Double.parseDouble(score);
+        ranking.size++;
+        position = lineEnd + 1;
+      }
+    }
+
+    return ranking;
+  }
+
+  private MappedByteBuffer map(long offset, int size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(size, length - offset));
+  }
+
+  /*
+   * Get a column of the line from start to end. Columns are separated by single spaces.
+   */
+  private static String column(MappedByteBuffer buffer, int start, int end, int column)
+      throws IOException {
+
+    if (end > start && buffer.get(end - 1) == '\r') {
+      end--;
+    }
+    for (int c = 0; c < column && start <= end; c++) {
+      while (start < end && buffer.get(start) != ' ') {
+        start++;
+      }
+      start++;
+    }
+    if (start > end) {
+      return null;
+    }
+    int columnEnd = start;
+    while (columnEnd < end && buffer.get(columnEnd) != ' ') {
+      columnEnd++;
+    }
+    byte[] bytes = new byte[columnEnd - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(start + i);
+    }
+    return new String(bytes, "UTF-8");
+  }
+
+  /*
+   * Whether the line from start to end begins with the query id and a space.
+   */
+  private static boolean startsWith(MappedByteBuffer buffer, int start, int end, byte[] qid) {
+    if (end - start <= qid.length || buffer.get(start + qid.length) != ' ') {
+      return false;
+    }
+    for (int i = 0; i < qid.length; i++) {
+      if (buffer.get(start + i) != qid[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Scan the file, and record where each run of rows of the same query starts.
+   */
+  private Map<String, List<Long>> buildIndex() throws IOException {
+
+    Map<String, List<Long>> index = new HashMap<String, List<Long>>();
+    InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 20);
+    try {
+      byte[] qid = new byte[256];
+      int qidLength = 0;
+      String previous = null;
+      long lineStart = 0;
+      long offset = 0;
+      boolean inQid = true;
+      int b;
+      while ((b = in.read()) != -1) {
+        if (inQid) {
+          if (b == ' ' || b == '\n') {
+            String queryId = new String(qid, 0, qidLength, "UTF-8");
+            if (!queryId.equals(previous)) {
+              if (!index.containsKey(queryId)) {
+                index.put(queryId, new ArrayList<Long>());
+              }
+              index.get(queryId).add(lineStart);
+              previous = queryId;
+            }
+            inQid = false;
+          } else {
+            if (qidLength == qid.length) {
+              qid = Arrays.copyOf(qid, qidLength * 2);
+            }
+            qid[qidLength++] = (byte) b;
+          }
+        }
+        offset++;
+        if (b == '\n') {
+          lineStart = offset;
+          qidLength = 0;
+          inQid = true;
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return index;
+  }
+
+  /*
+   * Load a saved index, or return null if there is none for the current ranking file.
+   */
+  private Map<String, List<Long>> loadIndex(File indexFile) throws IOException {
+
+    if (!indexFile.exists()) {
+      return null;
+    }
+
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+    try {
+      if (in.readInt() != MAGIC || in.readLong() != length
+          || in.readLong() != file.lastModified()) {
+        return null;
+      }
+      int numQueries = in.readInt();
+      Map<String, List<Long>> index = new HashMap<String, List<Long>>(numQueries * 2);
+      for (int q = 0; q < numQueries; q++) {
+        String queryId = in.readUTF();
+        int numRuns = in.readInt();
+        List<Long> runs = new ArrayList<Long>(numRuns);
+        for (int r = 0; r < numRuns; r++) {
+          runs.add(in.readLong());
+        }
+        index.put(queryId, runs);
+      }
+      return index;
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * Save the index. The index is only a cache, so failing to write it is not an error.
+   */
+  private void saveIndex(File indexFile) {
+    try {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeLong(length);
+        out.writeLong(file.lastModified());
+        out.writeInt(index.size());
+        for (Map.Entry<String, List<Long>> entry : index.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeInt(entry.getValue().size());
+          for (Long offset : entry.getValue()) {
+            out.writeLong(offset);
+          }
+        }
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      System.err.println("Warning: Cannot save the ranking index " + indexFile + ": "
+          + e.getMessage());
+      indexFile.delete();
+    }
+  }
+
+}
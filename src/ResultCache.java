@@ -0,0 +1,249 @@
+/**
+ * ResultCache keeps the top documents of evaluated queries on disk, so that a query that was
+ * evaluated before, by this or an earlier run, is answered without evaluating it again. An entry
+ * is keyed by the query tree, the retrieval model with its parameters, and a fingerprint of the
+ * index (its path, commit version and document counts), so results of a changed index are never
+ * returned.
+ *
+ * The cache is a single file of fixed-size slots, memory-mapped for reading and writing. A slot
+ * holds the SHA-1 digest of the key, the time the entry was last used (a counter, 0 for an empty
+ * slot), and up to k (docid, score) pairs. The file size is the size cap; when all slots are used,
+ * the least recently used entry is evicted. The recency order is rebuilt from the slots when the
+ * cache is opened.
+ *
+ * A ResultCache is synchronized, and the file is locked so that only one process uses it.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+
+public class ResultCache {
+
+  private static final int MAGIC = 0x52435331;
+  private static final int HEADER_SIZE = 16;
+  private static final int DIGEST_SIZE = 20;
+
+  private int k;
+  private int slotSize;
+  private int numSlots;
+  private String fingerprint;
+
+  private RandomAccessFile file;
+  private FileLock lock;
+  private MappedByteBuffer slots;
+
+  // Digest of each cached key to its slot, from least to most recently used.
+  private Map<String, Integer> entries = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+  private List<Integer> freeSlots = new ArrayList<Integer>();
+  private long clock = 0;
+
+  /**
+   * Open a result cache, creating it if needed. A cache file of another size or with another k is
+   * discarded.
+   *
+   * @param dir The directory of the cache file.
+   * @param maxBytes The size cap of the cache file.
+   * @param k The number of top documents kept for each query.
+   * @throws IOException
+   */
+  public ResultCache(File dir, long maxBytes, int k) throws IOException {
+
+    this.k = k;
+    this.slotSize = 8 + DIGEST_SIZE + 4 + 12 * k;
+    long numSlots = (Math.min(maxBytes, Integer.MAX_VALUE) - HEADER_SIZE) / slotSize;
+    if (numSlots < 1) {
+      throw new IOException("Result cache size " + maxBytes + " is too small for one entry");
+    }
+    this.numSlots = (int) numSlots;
+    this.fingerprint = fingerprint();
+
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    this.file = new RandomAccessFile(new File(dir, "results.cache"), "rw");
+    this.lock = file.getChannel().tryLock();
+    if (lock == null) {
+      file.close();
+      throw new IOException("Result cache " + dir + " is used by another process");
+    }
+
+    long length = HEADER_SIZE + (long) this.numSlots * slotSize;
+    boolean valid =
+        file.length() == length && file.readInt() == MAGIC && file.readInt() == k
+            && file.readInt() == this.numSlots;
+    if (!valid) {
+      file.setLength(0);
+      file.setLength(length);
+      file.seek(0);
+      file.writeInt(MAGIC);
+      file.writeInt(k);
+      file.writeInt(this.numSlots);
+    }
+    this.slots = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+    // Rebuild the recency order from the last used times of the slots.
+    final long[] lastUsed = new long[this.numSlots];
+    List<Integer> used = new ArrayList<Integer>();
+    for (int s = 0; s < this.numSlots; s++) {
+      lastUsed[s] = slots.getLong(offset(s));
+      if (lastUsed[s] == 0) {
+        freeSlots.add(s);
+      } else {
+        used.add(s);
+        clock = Math.max(clock, lastUsed[s]);
+      }
+    }
+    Integer[] order = used.toArray(new Integer[used.size()]);
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer s1, Integer s2) {
+        return (lastUsed[s1] < lastUsed[s2]) ? -1 : ((lastUsed[s1] > lastUsed[s2]) ? 1 : 0);
+      }
+    });
+    for (Integer s : order) {
+      entries.put(readDigest(s), s);
+    }
+  }
+
+  /**
+   * Get the cached result of a query.
+   *
+   * @param key The key of the query, which describes the query tree and the retrieval model.
+   * @return The top documents of the query, or null if they are not cached.
+   * @throws IOException
+   */
+  public synchronized QryResult get(String key) throws IOException {
+
+    Integer slot = entries.get(hex(digest(key)));
+    if (slot == null) {
+      return null;
+    }
+    int offset = offset(slot);
+    slots.putLong(offset, ++clock);
+
+    QryResult result = new QryResult();
+    int size = slots.getInt(offset + 8 + DIGEST_SIZE);
+    int position = offset + 8 + DIGEST_SIZE + 4;
+    for (int i = 0; i < size; i++) {
+      result.docScores.add(slots.getInt(position), slots.getDouble(position + 4));
+      position += 12;
+    }
+    return result;
+  }
+
+  /**
+   * Cache the top k documents of a query, evicting the least recently used entry if the cache is
+   * full.
+   *
+   * @param key The key of the query, which describes the query tree and the retrieval model.
+   * @param result The result of the query.
+   * @throws IOException
+   */
+  public synchronized void put(String key, QryResult result) throws IOException {
+
+    byte[] digest = digest(key);
+    Integer slot = entries.get(hex(digest));
+    if (slot == null) {
+      if (freeSlots.isEmpty()) {
+        Iterator<Integer> eldest = entries.values().iterator();
+        freeSlots.add(eldest.next());
+        eldest.remove();
+      }
+      slot = freeSlots.remove(freeSlots.size() - 1);
+      entries.put(hex(digest), slot);
+    }
+
+    // The slot is marked empty while it is written, so that a partly written entry is never read.
+    int offset = offset(slot);
+    slots.putLong(offset, 0);
+    for (int i = 0; i < DIGEST_SIZE; i++) {
+      slots.put(offset + 8 + i, digest[i]);
+    }
+    DocScore top = new DocScore(result, k);
+    int size = top.scores.size();
+    slots.putInt(offset + 8 + DIGEST_SIZE, size);
+    int position = offset + 8 + DIGEST_SIZE + 4;
+    for (int i = 0; i < size; i++) {
+      slots.putInt(position, top.getInternalDocid(i));
+      slots.putDouble(position + 4, top.getDocidScore(i));
+      position += 12;
+    }
+    slots.putLong(offset, ++clock);
+  }
+
+  /**
+   * Write the cache to disk and close it.
+   *
+   * @throws IOException
+   */
+  public synchronized void close() throws IOException {
+    slots.force();
+    lock.release();
+    file.close();
+  }
+
+  private int offset(int slot) {
+    return HEADER_SIZE + slot * slotSize;
+  }
+
+  private String readDigest(int slot) {
+    byte[] bytes = new byte[DIGEST_SIZE];
+    for (int i = 0; i < DIGEST_SIZE; i++) {
+      bytes[i] = slots.get(offset(slot) + 8 + i);
+    }
+    return hex(bytes);
+  }
+
+  private static String hex(byte[] digest) {
+    return new BigInteger(1, digest).toString(16);
+  }
+
+  /*
+   * The SHA-1 digest of the key, prefixed by the index fingerprint.
+   */
+  private byte[] digest(String key) throws IOException {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      return sha1.digest((fingerprint + '\n' + key).getBytes("UTF-8"));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 is not available", e);
+    }
+  }
+
+  /*
+   * Describe the open index, so that a rebuilt or updated index does not match old entries.
+   */
+  private static String fingerprint() throws IOException {
+    String fingerprint = QryEval.READER.maxDoc() + " " + QryEval.READER.numDocs();
+    if (QryEval.READER instanceof DirectoryReader) {
+      DirectoryReader reader = (DirectoryReader) QryEval.READER;
+      fingerprint += " " + reader.getVersion();
+      if (reader.directory() instanceof FSDirectory) {
+        fingerprint +=
+            " " + ((FSDirectory) reader.directory()).getDirectory().getCanonicalPath();
+      }
+    }
+    return fingerprint;
+  }
+
+}
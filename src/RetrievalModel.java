@@ -32,4 +32,11 @@ public abstract class RetrievalModel {
    *  @return value of the parameter.
    */
   public abstract double getParameter (String parameterName);
+
+  /**
+   *  Get the scorer compiled from the current parameters.  Query
+   *  operators score documents through it.
+   *  @return The scorer of this retrieval model.
+   */
+  public abstract ModelScorer getScorer ();
 }
@@ -4,12 +4,126 @@
  * @author KyleMao
  *
  */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
 public class RetrievalModelBM25 extends RetrievalModel {
 
   private double b;
   private double k_1;
   private double k_3;
 
+  // Compiled from the parameters when it is first needed.
+  private Scorer scorer;
+
+  /*
+   * The BM25 scorer. The query term frequency is 1, so the user weight is the same for all terms.
+   */
+  private static class Scorer extends ModelScorer {
+
+    private final double b;
+    private final double k_1;
+    private final double user_weight;
+
+    private Scorer(double b, double k_1, double k_3) {
+      this.b = b;
+      this.k_1 = k_1;
+      double qtf = 1.0;
+      this.user_weight = (k_3 + 1) * qtf / (k_3 + qtf);
+    }
+
+    @Override
+    public Family getFamily() {
+      return Family.SUM;
+    }
+
+    /*
+     * The idf of a term, which is 0 for terms in more than half of the documents.
+     */
+    private static double idf(int df) {
+      double N = QryEval.READER.numDocs();
+      return Math.max(Math.log((N - df + 0.5) / (df + 0.5)), 0.0);
+    }
+
+    /*
+     * Only the tf weight depends on the document. Its length normalization comes from a table that
+     * is shared by all queries.
+     */
+    @Override
+    public TermScorer forTerm(String field, int df, long ctf, double weight) throws IOException {
+      final double termWeight = idf(df) * user_weight * weight;
+      final float[] norms = QryEval.bm25Norms.getNorms(field, b, k_1);
+      return new TermScorer() {
+        @Override
+        public double score(int docid, int tf) {
+          double dtf = tf;
+          return termWeight * dtf / (dtf + norms[docid]);
+        }
+      };
+    }
+
+    /*
+     * BM25F. The pseudo frequency of a document is the sum over fields of weight * tf / norm, where
+     * norm is (1 - b) + b * docLen / avgLen of the field, and it is saturated once with k_1. The idf
+     * uses the number of documents that contain the term in any of the fields.
+     */
+    @Override
+    public FieldScores scoreFields(InvList[] invLists, List<Double> weights) throws IOException {
+
+      // The shared normalization tables hold k_1 * norm, so tf / (table / k_1) is tf / norm. With
+      // k_1 = 0 the tables are all 0, but the tf weight is 1 for any document with a positive pseudo
+      // frequency, so only the field weights are summed.
+      int numFields = invLists.length;
+      float[][] norms = new float[numFields][];
+      double[] fieldWeights = new double[numFields];
+      for (int i = 0; i < numFields; i++) {
+        norms[i] = QryEval.bm25Norms.getNorms(invLists[i].field, b, k_1);
+        fieldWeights[i] = (k_1 == 0) ? weights.get(i) : weights.get(i) * k_1;
+      }
+
+      // Merge the lists into the pseudo frequency of each document. The idf is only known after
+      // the merge, so it is applied afterwards.
+      int[] docids = new int[16];
+      double[] pseudoTfs = new double[16];
+      int df = 0;
+      int[] cursors = new int[numFields];
+      int docid;
+      while ((docid = nextDocid(invLists, cursors)) != Integer.MAX_VALUE) {
+        double pseudoTf = 0.0;
+        for (int i = 0; i < numFields; i++) {
+          if (cursors[i] < invLists[i].df && invLists[i].getDocid(cursors[i]) == docid) {
+            if (k_1 == 0) {
+              pseudoTf += fieldWeights[i] * invLists[i].getTf(cursors[i]);
+            } else {
+              pseudoTf += fieldWeights[i] * invLists[i].getTf(cursors[i]) / norms[i][docid];
+            }
+            cursors[i]++;
+          }
+        }
+        if (df == docids.length) {
+          docids = Arrays.copyOf(docids, df * 2);
+          pseudoTfs = Arrays.copyOf(pseudoTfs, df * 2);
+        }
+        docids[df] = docid;
+        pseudoTfs[df] = pseudoTf;
+        df++;
+      }
+
+      double termWeight = idf(df) * user_weight;
+      FieldScores result = new FieldScores();
+      for (int i = 0; i < df; i++) {
+        if (k_1 == 0) {
+          result.scores.add(docids[i], (pseudoTfs[i] > 0) ? termWeight : 0.0);
+        } else {
+          result.scores.add(docids[i], termWeight * pseudoTfs[i] / (k_1 + pseudoTfs[i]));
+        }
+      }
+      return result;
+    }
+  }
+
   /**
    * Set a retrieval model parameter.
    * 
@@ -19,6 +133,7 @@ public class RetrievalModelBM25 extends RetrievalModel {
    */
   @Override
   public boolean setParameter(String parameterName, double value) {
+    this.scorer = null;
     if (parameterName.equals("b")) {
       this.b = value;
       return true;
@@ -72,4 +187,27 @@ public class RetrievalModelBM25 extends RetrievalModel {
     return 0.0;
   }
 
+  /**
+   * Get the scorer compiled from the current parameters.
+   * 
+   * @return The BM25 scorer.
+   */
+  @Override
+  public ModelScorer getScorer() {
+    if (scorer == null) {
+      scorer = new Scorer(b, k_1, k_3);
+    }
+    return scorer;
+  }
+
+  /**
+   * Return a string version of this retrieval model, with its parameters.
+   * 
+   * @return The string version of this retrieval model.
+   */
+  @Override
+  public String toString() {
+    return "BM25(b=" + b + ",k_1=" + k_1 + ",k_3=" + k_3 + ")";
+  }
+
 }
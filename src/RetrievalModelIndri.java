@@ -4,11 +4,99 @@
  * @author KyleMao
  *
  */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public class RetrievalModelIndri extends RetrievalModel {
 
   private int mu;
   private double lambda;
 
+  // Compiled from the parameters when it is first needed.
+  private Scorer scorer;
+
+  /*
+   * The Indri scorer. A term is scored by its Dirichlet smoothed probability in the document, mixed
+   * with its probability in the collection.
+   */
+  private static class Scorer extends ModelScorer {
+
+    private final double mu;
+    private final double lambda;
+
+    private Scorer(double mu, double lambda) {
+      this.mu = mu;
+      this.lambda = lambda;
+    }
+
+    @Override
+    public Family getFamily() {
+      return Family.LANGUAGE_MODEL;
+    }
+
+    @Override
+    public TermScorer forTerm(final String field, int df, long ctf, double weight)
+        throws IOException {
+      final double p_mle = (double) ctf / QryEval.READER.getSumTotalTermFreq(field);
+      final double[] invLengths = QryEval.indriNorms.getInvLengths(field, mu);
+      return new TermScorer() {
+        @Override
+        public double score(int docid, int tf) {
+          double dtf = tf;
+          return (1 - lambda) * (dtf + mu * p_mle) * invLengths[docid] + lambda * p_mle;
+        }
+
+        @Override
+        public IndriDefaultScore getDefault() {
+          return IndriDefaultScore.forTerm(field, p_mle, mu, lambda, invLengths);
+        }
+      };
+    }
+
+    /*
+     * A mixture of the smoothed field language models. Each field is smoothed with its own
+     * collection probability and lengths, and the fields are added up in argument order, as #WSUM
+     * does, so that both give the same scores.
+     */
+    @Override
+    public FieldScores scoreFields(InvList[] invLists, List<Double> weights) throws IOException {
+
+      double sumW = 0.0;
+      for (Double w : weights) {
+        sumW += w;
+      }
+
+      int numFields = invLists.length;
+      TermScorer[] termScorers = new TermScorer[numFields];
+      FieldScores result = new FieldScores();
+      result.fieldDefaults = new ArrayList<IndriDefaultScore>();
+      for (int i = 0; i < numFields; i++) {
+        termScorers[i] = forTerm(invLists[i].field, invLists[i].df, invLists[i].ctf, 1.0);
+        result.fieldDefaults.add(termScorers[i].getDefault());
+      }
+
+      int[] cursors = new int[numFields];
+      int docid;
+      while ((docid = nextDocid(invLists, cursors)) != Integer.MAX_VALUE) {
+        double docScore = 0.0;
+        for (int i = 0; i < numFields; i++) {
+          double p;
+          if (cursors[i] < invLists[i].df && invLists[i].getDocid(cursors[i]) == docid) {
+            p = termScorers[i].score(docid, invLists[i].getTf(cursors[i]));
+            cursors[i]++;
+          } else {
+            p = result.fieldDefaults.get(i).getScore(docid);
+          }
+          docScore += p * weights.get(i) / sumW;
+        }
+        result.scores.add(docid, docScore);
+      }
+      return result;
+    }
+  }
+
   /**
    * Set a retrieval model parameter.
    * 
@@ -18,6 +106,7 @@ public class RetrievalModelIndri extends RetrievalModel {
    */
   @Override
   public boolean setParameter(String parameterName, double value) {
+    this.scorer = null;
     if (parameterName.equals("lambda")) {
       this.lambda = value;
       return true;
@@ -66,4 +155,27 @@ public class RetrievalModelIndri extends RetrievalModel {
     return 0.0;
   }
 
+  /**
+   * Get the scorer compiled from the current parameters.
+   * 
+   * @return The Indri scorer.
+   */
+  @Override
+  public ModelScorer getScorer() {
+    if (scorer == null) {
+      scorer = new Scorer(mu, lambda);
+    }
+    return scorer;
+  }
+
+  /**
+   * Return a string version of this retrieval model, with its parameters.
+   * 
+   * @return The string version of this retrieval model.
+   */
+  @Override
+  public String toString() {
+    return "Indri(mu=" + mu + ",lambda=" + lambda + ")";
+  }
+
 }
@@ -6,6 +6,25 @@
  */
 public class RetrievalModelRankedBoolean extends RetrievalModel {
 
+  private static final ModelScorer SCORER = new ModelScorer() {
+    private final TermScorer termScorer = new TermScorer() {
+      @Override
+      public double score(int docid, int tf) {
+        return tf;
+      }
+    };
+
+    @Override
+    public Family getFamily() {
+      return Family.EXACT_MATCH;
+    }
+
+    @Override
+    public TermScorer forTerm(String field, int df, long ctf, double weight) {
+      return termScorer;
+    }
+  };
+
   /**
    * Set a retrieval model parameter.
    * 
@@ -47,4 +66,25 @@ public class RetrievalModelRankedBoolean extends RetrievalModel {
     return 0.0;
   }
 
+  /**
+   *  Return a string version of this retrieval model.
+   *  
+   *  @return The string version of this retrieval model.
+   */
+  @Override
+  public String toString () {
+    return "RankedBoolean";
+  }
+
+  /**
+   *  Get the scorer of this retrieval model.  The score of a matching
+   *  document is the term frequency.
+   *  
+   *  @return The scorer of this retrieval model.
+   */
+  @Override
+  public ModelScorer getScorer () {
+    return SCORER;
+  }
+
 }
@@ -6,6 +6,25 @@
 
 public class RetrievalModelUnrankedBoolean extends RetrievalModel {
 
+  private static final ModelScorer SCORER = new ModelScorer() {
+    private final TermScorer termScorer = new TermScorer() {
+      @Override
+      public double score (int docid, int tf) {
+        return 1.0;
+      }
+    };
+
+    @Override
+    public Family getFamily () {
+      return Family.EXACT_MATCH;
+    }
+
+    @Override
+    public TermScorer forTerm (String field, int df, long ctf, double weight) {
+      return termScorer;
+    }
+  };
+
   /**
    * Set a retrieval model parameter.
    * 
@@ -45,4 +64,25 @@ public class RetrievalModelUnrankedBoolean extends RetrievalModel {
     return 0.0;
   }
 
+  /**
+   *  Return a string version of this retrieval model.
+   *  
+   *  @return The string version of this retrieval model.
+   */
+  @Override
+  public String toString () {
+    return "UnrankedBoolean";
+  }
+
+  /**
+   *  Get the scorer of this retrieval model.  Every matching document
+   *  gets a score of 1.0.
+   *  
+   *  @return The scorer of this retrieval model.
+   */
+  @Override
+  public ModelScorer getScorer () {
+    return SCORER;
+  }
+
 }
@@ -0,0 +1,280 @@
+/**
+ * RunReport measures every query of a run and writes a JSON report when the run ends. For each
+ * query it records the latency of evaluation, the CPU time and the bytes allocated by the thread
+ * that evaluated it (from ThreadMXBean, where the JVM supports it), the garbage collection time
+ * during the query, the number of postings read from the index and the number of documents in the
+ * result. The run summary adds queries per second, the mean, p50, p90, p99 and max latency, a
+ * latency histogram with power-of-two millisecond buckets, and the totals. The report names the
+ * retrieval model with its parameters and whether relevance feedback ran, so reports of different
+ * runs can be grouped by both.
+ *
+ * GC time is collected for the whole JVM, so when queries are evaluated concurrently the GC time of
+ * a query includes collections caused by the others.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+public class RunReport {
+
+  // Postings read by the current thread, counted by InvList.
+  private static final ThreadLocal<long[]> postingsRead = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[1];
+    }
+  };
+
+  // The measurements of one query.
+  private static class QueryStats {
+    private String queryId;
+    private long latencyNanos;
+    private long cpuNanos = -1;
+    private long allocatedBytes = -1;
+    private long gcMillis;
+    private long postings;
+    private int results;
+  }
+
+  private String model;
+  private boolean feedback;
+  private List<QueryStats> queries = Collections.synchronizedList(new ArrayList<QueryStats>());
+
+  private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private com.sun.management.ThreadMXBean allocations;
+  private long startNanos;
+  private long startGcMillis;
+  private long startGcCount;
+
+  /**
+   * Start measuring a run.
+   *
+   * @param model The retrieval model of the run.
+   * @param feedback Whether the run uses relevance feedback.
+   */
+  public RunReport(RetrievalModel model, boolean feedback) {
+    this.model = model.toString();
+    this.feedback = feedback;
+    if (threads instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+      this.allocations = (com.sun.management.ThreadMXBean) threads;
+      allocations.setThreadAllocatedMemoryEnabled(true);
+    }
+    if (threads.isCurrentThreadCpuTimeSupported()) {
+      threads.setThreadCpuTimeEnabled(true);
+    }
+    this.startNanos = System.nanoTime();
+    this.startGcMillis = gcMillis();
+    this.startGcCount = gcCount();
+  }
+
+  /**
+   * Count postings read from the index by the current thread.
+   *
+   * @param n The number of postings.
+   */
+  public static void countPostings(int n) {
+    postingsRead.get()[0] += n;
+  }
+
+  /**
+   * Wrap an evaluator so that every query it evaluates is measured.
+   *
+   * @param evaluator The evaluator.
+   * @return The measuring evaluator.
+   */
+  public QryPipeline.Evaluator wrap(final QryPipeline.Evaluator evaluator) {
+    return new QryPipeline.Evaluator() {
+      @Override
+      public QryResult evaluate(Qryop qTree, String queryId, String query) throws Exception {
+
+        QueryStats stats = new QueryStats();
+        stats.queryId = queryId;
+        long threadId = Thread.currentThread().getId();
+        long[] postings = postingsRead.get();
+        long startPostings = postings[0];
+        long startAllocated = (allocations != null) ? allocations.getThreadAllocatedBytes(threadId)
+            : -1;
+        long startCpu = threads.isCurrentThreadCpuTimeSupported()
+            ? threads.getCurrentThreadCpuTime() : -1;
+        long startGc = gcMillis();
+        long start = System.nanoTime();
+
+        QryResult result = evaluator.evaluate(qTree, queryId, query);
+
+        stats.latencyNanos = System.nanoTime() - start;
+        stats.gcMillis = gcMillis() - startGc;
+        if (startCpu >= 0) {
+          stats.cpuNanos = threads.getCurrentThreadCpuTime() - startCpu;
+        }
+        if (startAllocated >= 0) {
+          stats.allocatedBytes = allocations.getThreadAllocatedBytes(threadId) - startAllocated;
+        }
+        stats.postings = postings[0] - startPostings;
+        stats.results = (result == null) ? 0 : result.docScores.scores.size();
+        queries.add(stats);
+
+        return result;
+      }
+    };
+  }
+
+  /**
+   * Finish the run and write the report.
+   *
+   * @param file The report file.
+   * @throws IOException
+   */
+  public void write(File file) throws IOException {
+
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    List<QueryStats> all = new ArrayList<QueryStats>(queries);
+    int n = all.size();
+
+    long[] latencies = new long[n];
+    long totalLatency = 0;
+    long totalPostings = 0;
+    long totalResults = 0;
+    long totalAllocated = 0;
+    for (int i = 0; i < n; i++) {
+      QueryStats stats = all.get(i);
+      latencies[i] = stats.latencyNanos;
+      totalLatency += stats.latencyNanos;
+      totalPostings += stats.postings;
+      totalResults += stats.results;
+      totalAllocated += Math.max(stats.allocatedBytes, 0);
+    }
+    Arrays.sort(latencies);
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"model\": ").append(quote(model)).append(",\n");
+    json.append("  \"feedback\": ").append(feedback).append(",\n");
+    json.append("  \"queries\": ").append(n).append(",\n");
+    json.append("  \"runningTimeMs\": ").append(number(seconds * 1000)).append(",\n");
+    json.append("  \"queriesPerSec\": ").append(number((seconds > 0) ? n / seconds : 0)).append(
+        ",\n");
+    json.append("  \"latencyMs\": {");
+    json.append("\"mean\": ").append(millis((n > 0) ? totalLatency / n : 0));
+    json.append(", \"p50\": ").append(millis(percentile(latencies, 50)));
+    json.append(", \"p90\": ").append(millis(percentile(latencies, 90)));
+    json.append(", \"p99\": ").append(millis(percentile(latencies, 99)));
+    json.append(", \"max\": ").append(millis((n > 0) ? latencies[n - 1] : 0));
+    json.append("},\n");
+    json.append("  \"latencyHistogramMs\": [");
+    appendHistogram(json, latencies);
+    json.append("],\n");
+    json.append("  \"postingsRead\": ").append(totalPostings).append(",\n");
+    json.append("  \"resultDocs\": ").append(totalResults).append(",\n");
+    json.append("  \"gcMs\": ").append(gcMillis() - startGcMillis).append(",\n");
+    json.append("  \"gcCount\": ").append(gcCount() - startGcCount).append(",\n");
+    json.append("  \"allocatedBytes\": ").append((allocations != null) ? totalAllocated : -1)
+        .append(",\n");
+    json.append("  \"perQuery\": [");
+    for (int i = 0; i < n; i++) {
+      QueryStats stats = all.get(i);
+      json.append((i == 0) ? "\n" : ",\n");
+      json.append("    {\"query\": ").append(quote(stats.queryId));
+      json.append(", \"latencyMs\": ").append(millis(stats.latencyNanos));
+      json.append(", \"cpuMs\": ").append(
+          (stats.cpuNanos >= 0) ? millis(stats.cpuNanos) : "null");
+      json.append(", \"allocatedBytes\": ").append(
+          (stats.allocatedBytes >= 0) ? String.valueOf(stats.allocatedBytes) : "null");
+      json.append(", \"gcMs\": ").append(stats.gcMillis);
+      json.append(", \"postingsRead\": ").append(stats.postings);
+      json.append(", \"results\": ").append(stats.results).append("}");
+    }
+    json.append((n > 0) ? "\n  ]\n" : "]\n");
+    json.append("}\n");
+
+    BufferedWriter out = new BufferedWriter(new FileWriter(file));
+    try {
+      out.write(json.toString());
+    } finally {
+      out.close();
+    }
+  }
+
+  /*
+   * Append the number of queries whose latency falls in each bucket [2^(i-1), 2^i) ms, with the
+   * first bucket starting at 0, up to the bucket of the largest latency.
+   */
+  private static void appendHistogram(StringBuilder json, long[] sortedLatencies) {
+    int i = 0;
+    for (long upTo = 1; i < sortedLatencies.length; upTo *= 2) {
+      int count = 0;
+      while (i < sortedLatencies.length && sortedLatencies[i] < upTo * 1000000) {
+        count++;
+        i++;
+      }
+      if (upTo > 1) {
+        json.append(", ");
+      }
+      json.append("{\"ltMs\": ").append(upTo).append(", \"count\": ").append(count).append("}");
+    }
+  }
+
+  /*
+   * The nearest-rank percentile of sorted values.
+   */
+  private static long percentile(long[] sortedValues, int p) {
+    if (sortedValues.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(p / 100.0 * sortedValues.length);
+    return sortedValues[Math.max(rank, 1) - 1];
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(gc.getCollectionTime(), 0);
+    }
+    return millis;
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(gc.getCollectionCount(), 0);
+    }
+    return count;
+  }
+
+  private static String millis(long nanos) {
+    return number(nanos / 1e6);
+  }
+
+  private static String number(double value) {
+    return String.format(Locale.ROOT, "%.3f", value);
+  }
+
+  private static String quote(String s) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+}
@@ -0,0 +1,107 @@
+/**
+ * ScoreListCache keeps the score lists computed by SCORE operators, so that a leaf such as
+ * #SCORE(apple.title) that occurs in many queries is fetched and scored only once for the same
+ * retrieval model parameters. A list is kept as parallel arrays of docids and scores, which take
+ * 12 bytes per document instead of an object per document. When the memory budget is used up, the
+ * least recently used lists are evicted.
+ *
+ * The cache is shared by all queries and threads.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ScoreListCache {
+
+  /**
+   * The score list of a SCORE operator, and what the operator needs to compute default scores.
+   */
+  public static class Entry {
+
+    String field;
+    long ctf;
+    int[] docids;
+    double[] scores;
+
+    private long bytes() {
+      return 64 + 12L * docids.length;
+    }
+
+    /**
+     * @return A new score list with the cached docids and scores.
+     */
+    public ScoreList toScoreList() {
+      ScoreList scoreList = new ScoreList();
+      for (int i = 0; i < docids.length; i++) {
+        scoreList.add(docids[i], scores[i]);
+      }
+      return scoreList;
+    }
+  }
+
+  private long maxBytes;
+  private long usedBytes = 0;
+  private Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /**
+   * Constructor.
+   *
+   * @param maxBytes The memory budget of the cached lists.
+   */
+  public ScoreListCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Get a cached score list.
+   *
+   * @param key The key of the SCORE operator, which describes its argument, weight and the
+   *        retrieval model with its parameters.
+   * @return The cached entry, or null if there is none.
+   */
+  public synchronized Entry get(String key) {
+    return entries.get(key);
+  }
+
+  /**
+   * Cache a score list, evicting the least recently used lists until it fits in the budget. A list
+   * that is larger than the whole budget is not cached.
+   *
+   * @param key The key of the SCORE operator.
+   * @param field The field of the operator's argument.
+   * @param ctf The number of occurrences of the operator's argument.
+   * @param scoreList The score list.
+   */
+  public synchronized void put(String key, String field, long ctf, ScoreList scoreList) {
+
+    Entry entry = new Entry();
+    entry.field = field;
+    entry.ctf = ctf;
+    entry.docids = new int[scoreList.scores.size()];
+    entry.scores = new double[entry.docids.length];
+    for (int i = 0; i < entry.docids.length; i++) {
+      entry.docids[i] = scoreList.getDocid(i);
+      entry.scores[i] = scoreList.getDocidScore(i);
+    }
+    if (entry.bytes() > maxBytes) {
+      return;
+    }
+
+    Entry old = entries.remove(key);
+    if (old != null) {
+      usedBytes -= old.bytes();
+    }
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (usedBytes + entry.bytes() > maxBytes) {
+      usedBytes -= eldest.next().bytes();
+      eldest.remove();
+    }
+    entries.put(key, entry);
+    usedBytes += entry.bytes();
+  }
+
+}
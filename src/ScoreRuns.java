@@ -0,0 +1,457 @@
+/**
+ * ScoreRuns merges the score lists of the arguments of an OR or SUM operator within a memory
+ * budget. Each argument becomes a run sorted by docid, written one document at a time as soon as
+ * the argument is evaluated: terms are scored straight from their postings, and nested operators
+ * that merge their own arguments stream the merged documents into the run. A run is kept in memory
+ * while it fits in what is left of the budget, and continues in a temporary file when it does not.
+ * The runs in memory and on disk are then combined with a k-way merge.
+ *
+ * The budget covers the arrays of the runs in memory, including their growth, and the score list
+ * that the merge returns. When that list outgrows the budget, runs that are still in memory are
+ * moved to disk. Nested ScoreRuns share the budget of the outermost one.
+ *
+ * @author KyleMao
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScoreRuns {
+
+  // Bytes per document in memory and on disk: a docid and a score.
+  private static final int ENTRY_SIZE = 12;
+
+  // Bytes per document of a ScoreList: the entry object, its reference in the list, and the slack
+  // of the array of the list.
+  private static final int LIST_ENTRY_SIZE = 40;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /**
+   * How the scores of a document in several runs are combined.
+   */
+  public enum Combine {
+    SUM, MAX
+  }
+
+  /*
+   * A run sorted by docid, either in memory or in a temporary file, read one document at a time.
+   */
+  private static class Run {
+
+    private int[] docids;
+    private double[] scores;
+    private int size;
+    private long bytes;
+    private File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+
+    private int next = 0;
+    private int docid;
+    private double score;
+
+    /*
+     * Move to the next document, or return false if the run is done.
+     */
+    private boolean advance() throws IOException {
+      if (next >= size) {
+        return false;
+      }
+      if (in != null) {
+        docid = in.readInt();
+        score = in.readDouble();
+      } else {
+        docid = docids[next];
+        score = scores[next];
+      }
+      next++;
+      return true;
+    }
+  }
+
+  private ScoreRuns root;
+  private long budget;
+  private File dir;
+  private long memoryUsed = 0;
+  private List<Run> runs = new ArrayList<Run>();
+  private Run current;
+
+  /**
+   * Constructor.
+   *
+   * @param budget The number of bytes of score lists to keep in memory.
+   * @param dir The directory for the temporary files, or null for the system default.
+   */
+  public ScoreRuns(long budget, File dir) {
+    this.root = this;
+    this.budget = budget;
+    this.dir = dir;
+  }
+
+  private ScoreRuns(ScoreRuns root) {
+    this.root = root;
+    this.budget = root.budget;
+    this.dir = root.dir;
+  }
+
+  /**
+   * Create the runs of a nested operator, which share the memory budget of these runs. Their merge
+   * is streamed into a run of these runs with mergeInto.
+   *
+   * @return The nested runs.
+   */
+  public ScoreRuns nested() {
+    return new ScoreRuns(root);
+  }
+
+  /**
+   * Start the run of the next argument. Its documents are then appended in increasing docid order,
+   * and the run is finished with endRun.
+   */
+  public void startRun() {
+    current = new Run();
+    runs.add(current);
+  }
+
+  /**
+   * Append a document to the current run.
+   *
+   * @param docid The internal document id, larger than the last one appended.
+   * @param score The document's score.
+   * @throws IOException
+   */
+  public void append(int docid, double score) throws IOException {
+
+    Run run = current;
+    if (run.out == null && (run.docids == null || run.size == run.docids.length)) {
+      // The old and the new arrays are both live while the run grows.
+      int capacity = (run.docids == null) ? INITIAL_CAPACITY : run.docids.length * 2;
+      if (root.reserve((long) ENTRY_SIZE * capacity)) {
+        int[] docids = new int[capacity];
+        double[] scores = new double[capacity];
+        if (run.docids != null) {
+          System.arraycopy(run.docids, 0, docids, 0, run.size);
+          System.arraycopy(run.scores, 0, scores, 0, run.size);
+        }
+        run.docids = docids;
+        run.scores = scores;
+        root.memoryUsed -= run.bytes;
+        run.bytes = (long) ENTRY_SIZE * capacity;
+      } else {
+        spill(run);
+      }
+    }
+
+    if (run.out != null) {
+      run.out.writeInt(docid);
+      run.out.writeDouble(score);
+    } else {
+      run.docids[run.size] = docid;
+      run.scores[run.size] = score;
+    }
+    run.size++;
+  }
+
+  /**
+   * Finish the current run.
+   *
+   * @throws IOException
+   */
+  public void endRun() throws IOException {
+    if (current.out != null) {
+      current.out.close();
+      current.out = null;
+    }
+    current = null;
+  }
+
+  /**
+   * Add the score list of the next argument as a run. The list is emptied as it is copied, so that
+   * its entries can be collected while the run is written.
+   *
+   * @param scoreList The score list.
+   * @throws IOException
+   */
+  public void add(ScoreList scoreList) throws IOException {
+
+    int n = scoreList.scores.size();
+    boolean sorted = true;
+    for (int i = 1; i < n && sorted; i++) {
+      sorted = scoreList.getDocid(i - 1) <= scoreList.getDocid(i);
+    }
+
+    startRun();
+    if (sorted) {
+      for (int i = 0; i < n; i++) {
+        append(scoreList.getDocid(i), scoreList.getDocidScore(i));
+        scoreList.scores.set(i, null);
+      }
+    } else {
+      // Lists built from a hash map must be sorted in memory before they can be written.
+      Run run = current;
+      run.docids = new int[n];
+      run.scores = new double[n];
+      run.bytes = (long) ENTRY_SIZE * n;
+      root.memoryUsed += run.bytes;
+      for (int i = 0; i < n; i++) {
+        run.docids[i] = scoreList.getDocid(i);
+        run.scores[i] = scoreList.getDocidScore(i);
+        scoreList.scores.set(i, null);
+      }
+      run.size = n;
+      sortByDocid(run.docids, run.scores, 0, n - 1);
+      if (root.memoryUsed > budget) {
+        spill(run);
+      }
+    }
+    scoreList.scores.clear();
+    endRun();
+  }
+
+  /**
+   * Merge the runs into one score list sorted by docid, and delete the temporary files. The scores
+   * of a document are combined in the order the runs were added.
+   *
+   * @param combine How the scores of a document are combined.
+   * @return The merged score list.
+   * @throws IOException
+   */
+  public ScoreList merge(Combine combine) throws IOException {
+    ScoreList merged = new ScoreList();
+    mergeRuns(combine, merged, null);
+    return merged;
+  }
+
+  /**
+   * Merge the runs into the next run of other runs, and delete the temporary files.
+   *
+   * @param combine How the scores of a document are combined.
+   * @param target The runs that get the merged run.
+   * @throws IOException
+   */
+  public void mergeInto(Combine combine, ScoreRuns target) throws IOException {
+    target.startRun();
+    mergeRuns(combine, null, target);
+    target.endRun();
+  }
+
+  /*
+   * Merge the runs into either a score list or a run of other runs.
+   */
+  private void mergeRuns(Combine combine, ScoreList merged, ScoreRuns target) throws IOException {
+
+    try {
+      for (Run run : runs) {
+        if (run.file != null) {
+          run.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file)));
+        }
+      }
+
+      // A min-heap of run indexes, by current docid and then by index.
+      int[] heap = new int[runs.size()];
+      int heapSize = 0;
+      for (int i = 0; i < runs.size(); i++) {
+        if (runs.get(i).advance()) {
+          heap[heapSize++] = i;
+        }
+      }
+      for (int i = heapSize / 2 - 1; i >= 0; i--) {
+        siftDown(heap, i, heapSize);
+      }
+
+      while (heapSize > 0) {
+        int docid = runs.get(heap[0]).docid;
+        double score = 0.0;
+        boolean first = true;
+        while (heapSize > 0 && runs.get(heap[0]).docid == docid) {
+          Run run = runs.get(heap[0]);
+          if (first) {
+            score = run.score;
+            first = false;
+          } else if (combine == Combine.SUM) {
+            score += run.score;
+          } else if (combine == Combine.MAX && run.score > score) {
+            score = run.score;
+          }
+          if (!run.advance()) {
+            heap[0] = heap[--heapSize];
+          }
+          siftDown(heap, 0, heapSize);
+        }
+
+        if (target != null) {
+          target.append(docid, score);
+        } else {
+          // Make room for the merged list by moving runs to disk. The list itself is the result,
+          // so it is kept in memory even if no runs are left to move.
+          while (!root.reserve(LIST_ENTRY_SIZE)) {
+            if (!spillLargest()) {
+              root.memoryUsed += LIST_ENTRY_SIZE;
+              break;
+            }
+          }
+          merged.add(docid, score);
+        }
+      }
+    } finally {
+      close();
+    }
+  }
+
+  /*
+   * Reserve memory within the budget, or return false if it does not fit.
+   */
+  private boolean reserve(long bytes) {
+    if (memoryUsed + bytes > budget) {
+      return false;
+    }
+    memoryUsed += bytes;
+    return true;
+  }
+
+  /*
+   * Move the rest of the largest run in memory to disk while the runs are merged, or return false
+   * if all runs are on disk.
+   */
+  private boolean spillLargest() throws IOException {
+    Run largest = null;
+    for (Run run : runs) {
+      if (run.docids != null && run.next < run.size
+          && (largest == null || run.bytes > largest.bytes)) {
+        largest = run;
+      }
+    }
+    if (largest == null) {
+      return false;
+    }
+    spill(largest);
+    largest.out.close();
+    largest.out = null;
+    largest.in = new DataInputStream(new BufferedInputStream(new FileInputStream(largest.file)));
+    return true;
+  }
+
+  /**
+   * Close and delete the temporary files, and release the memory of the runs. Merging closes the
+   * runs, so this is only needed when they are not merged, e.g., after an error. Closing twice does
+   * nothing.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    for (Run run : runs) {
+      try {
+        if (run.out != null) {
+          run.out.close();
+        }
+        if (run.in != null) {
+          run.in.close();
+        }
+      } finally {
+        if (run.file != null) {
+          run.file.delete();
+        }
+        root.memoryUsed -= run.bytes;
+      }
+    }
+    runs.clear();
+    current = null;
+  }
+
+  /*
+   * Write the documents of a run that are not read yet to a temporary file and drop the run from
+   * memory. The file stays open, so that a run that is being written can continue in it.
+   */
+  private void spill(Run run) throws IOException {
+    run.file = File.createTempFile("qryeval", ".run", dir);
+    run.out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run.file), 1 << 16));
+    for (int i = run.next; i < run.size; i++) {
+      run.out.writeInt(run.docids[i]);
+      run.out.writeDouble(run.scores[i]);
+    }
+    run.size -= run.next;
+    run.next = 0;
+    run.docids = null;
+    run.scores = null;
+    root.memoryUsed -= run.bytes;
+    run.bytes = 0;
+  }
+
+  /*
+   * Sort the documents from lo to hi of a run by docid, in place.
+   */
+  private static void sortByDocid(int[] docids, double[] scores, int lo, int hi) {
+    while (hi - lo > 16) {
+      int pivot = docids[(lo + hi) >>> 1];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (docids[i] < pivot) {
+          i++;
+        }
+        while (docids[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(docids, scores, i++, j--);
+        }
+      }
+      // Recurse into the smaller part, so the stack stays shallow.
+      if (j - lo < hi - i) {
+        sortByDocid(docids, scores, lo, j);
+        lo = i;
+      } else {
+        sortByDocid(docids, scores, i, hi);
+        hi = j;
+      }
+    }
+    for (int i = lo + 1; i <= hi; i++) {
+      for (int j = i; j > lo && docids[j - 1] > docids[j]; j--) {
+        swap(docids, scores, j - 1, j);
+      }
+    }
+  }
+
+  private static void swap(int[] docids, double[] scores, int i, int j) {
+    int docid = docids[i];
+    docids[i] = docids[j];
+    docids[j] = docid;
+    double score = scores[i];
+    scores[i] = scores[j];
+    scores[j] = score;
+  }
+
+  private void siftDown(int[] heap, int i, int size) {
+    while (2 * i + 1 < size) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && isBefore(heap[child + 1], heap[child])) {
+        child++;
+      }
+      if (!isBefore(heap[child], heap[i])) {
+        break;
+      }
+      int tmp = heap[i];
+      heap[i] = heap[child];
+      heap[child] = tmp;
+      i = child;
+    }
+  }
+
+  private boolean isBefore(int a, int b) {
+    int aDocid = runs.get(a).docid;
+    int bDocid = runs.get(b).docid;
+    return aDocid < bDocid || (aDocid == bDocid && a < b);
+  }
+
+}
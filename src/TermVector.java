@@ -8,6 +8,7 @@
  */
 
 import java.io.*;
+import java.util.Arrays;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
 import org.apache.lucene.index.Term;
@@ -16,76 +17,101 @@ import org.apache.lucene.index.TermsEnum;
 
 public class TermVector {
 
+  /**
+   * What a TermVector reads from the Lucene termvector. STEMS reads only the stems and their
+   * frequencies. POSITIONS also fills the positions array, which costs decoding every position.
+   */
+  public enum Mode {
+    STEMS, POSITIONS
+  };
+
   /**
    * Class variables.
    */
   Terms luceneTerms;
+  String fieldName;
   int[] positions;
   String[] stems;
   int[] stemsFreq;
   Term[] terms;
+  long[] stemsCtf;
+  int[] stemsDf;
 
   /**
-   * Constructor. Create a TermVector for a field in a document.
+   * Constructor. Create a TermVector for a field in a document, including positions.
    * 
    * @return {@link TermVector}
    */
   public TermVector(int docId, String fieldName) throws IOException {
+    this(docId, fieldName, Mode.POSITIONS);
+  }
+
+  /**
+   * Constructor. Create a TermVector for a field in a document. In STEMS mode positions are not
+   * read, and positionsLength() is 0.
+   * 
+   * @return {@link TermVector}
+   */
+  public TermVector(int docId, String fieldName, Mode mode) throws IOException {
 
     // Fetch the term vector.
 
     this.luceneTerms = QryEval.READER.getTermVector(docId, fieldName);
+    this.fieldName = fieldName;
 
     // Allocate space for stems. The 0'th stem indicates a stopword.
+    // The collection statistics of a stem are looked up on first use.
 
     int stemsLength = (int) this.luceneTerms.size();
     stems = new String[stemsLength + 1];
     terms = new Term[stemsLength + 1];
     stemsFreq = new int[stemsLength + 1];
-
-    // Iterate through the terms, filling in the stem and frequency
-    // information, and finding the position of the last term. The
-    // 0'th term indicates a stopword, so this loop starts at i=1.
+    stemsCtf = new long[stemsLength + 1];
+    stemsDf = new int[stemsLength + 1];
+    Arrays.fill(stemsCtf, -1);
+    Arrays.fill(stemsDf, -1);
+
+    // Iterate through the terms once, filling in the stem and frequency
+    // information, and, if asked to, the stem at each position. The
+    // positions array grows as larger positions are found, and is
+    // trimmed after the last (indexed) position at the end. Positions
+    // without a stem keep stem 0, a stopword. The 0'th term indicates
+    // a stopword, so this loop starts at i=1.
 
     TermsEnum ithTerm = this.luceneTerms.iterator(null);
+    DocsAndPositionsEnum ithPositions = null;
 
+    positions = new int[(mode == Mode.POSITIONS) ? 64 : 0];
     int positionsLength = 0;
     for (int i = 1; ithTerm.next() != null; i++) {
       stems[i] = ithTerm.term().utf8ToString();
-      terms[i] = new Term(fieldName, ithTerm.term().utf8ToString());
       stemsFreq[i] = (int) ithTerm.totalTermFreq();
 
-      // Find the position of the last (indexed) term in the
-      // document, so that the positions array can be created and
-      // populated later. The last position for each term is the
-      // largest, so ignore the positions before it.
-
-      DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null, null);
+      if (mode != Mode.POSITIONS) {
+        continue;
+      }
 
-      ithPositions.nextDoc(); /* Initialize iPositions */
-
-      for (int j = 0; j < ithPositions.freq() - 1; j++)
-        ithPositions.nextPosition();
-
-      positionsLength = Math.max(positionsLength, ithPositions.nextPosition());
-    }
-
-    // Create and fill the positions array. Note that the stems array
-    // uses stem 0 to indicate a stopword, so "real" stems have
-    // indexs 1 through length+1.
-
-    positions = new int[positionsLength + 1];
+      // The termvector may not store positions. The positions array
+      // is left empty then.
 
-    ithTerm = this.luceneTerms.iterator(null);
-
-    for (int i = 0; ithTerm.next() != null; i++) {
-      DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null, null);
+      ithPositions = ithTerm.docsAndPositions(null, ithPositions);
+      if (ithPositions == null) {
+        continue;
+      }
 
       ithPositions.nextDoc(); /* Initialize iPositions */
 
-      for (int j = 0; j < ithPositions.freq(); j++)
-        positions[ithPositions.nextPosition()] = i + 1;
+      for (int j = 0; j < ithPositions.freq(); j++) {
+        int position = ithPositions.nextPosition();
+        if (position >= positions.length) {
+          positions = Arrays.copyOf(positions, Math.max(positions.length * 2, position + 1));
+        }
+        positions[position] = i;
+        positionsLength = Math.max(positionsLength, position + 1);
+      }
     }
+
+    positions = Arrays.copyOf(positions, positionsLength);
   }
 
   /**
@@ -156,7 +182,9 @@ public class TermVector {
    * @throws IOException.
    */
   public long totalStemFreq(int i) throws IOException {
-    return QryEval.READER.totalTermFreq(terms[i]);
+    if (stemsCtf[i] < 0)
+      stemsCtf[i] = QryEval.READER.totalTermFreq(term(i));
+    return stemsCtf[i];
   }
 
   /**
@@ -167,7 +195,18 @@ public class TermVector {
    * @throws IOException.
    */
   public int stemDf(int i) throws IOException {
-    return QryEval.READER.docFreq(terms[i]);
+    if (stemsDf[i] < 0)
+      stemsDf[i] = QryEval.READER.docFreq(term(i));
+    return stemsDf[i];
+  }
+
+  /*
+   * Returns the Lucene Term of the i'th stem, creating it on first use.
+   */
+  private Term term(int i) {
+    if (terms[i] == null)
+      terms[i] = new Term(fieldName, stems[i]);
+    return terms[i];
   }
 
 }